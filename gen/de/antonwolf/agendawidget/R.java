@@ -46,6 +46,12 @@ public final class R {
         public static final int open_settings=0x7f0a0005;
         public static final int value=0x7f0a0007;
         public static final int widget=0x7f0a000a;
+        public static final int empty=0x7f0a000b;
+        public static final int list=0x7f0a000c;
+        public static final int row=0x7f0a000d;
+        public static final int event_countdown=0x7f0a000e;
+        public static final int page_previous=0x7f0a000f;
+        public static final int page_next=0x7f0a0010;
     }
     public static final class layout {
         public static final int birthdays=0x7f030000;
@@ -53,6 +59,9 @@ public final class R {
         public static final int pick_action=0x7f030002;
         public static final int preference_opacity=0x7f030003;
         public static final int widget=0x7f030004;
+        public static final int birthdays_row=0x7f030005;
+        public static final int event_row=0x7f030006;
+        public static final int widget_list=0x7f030007;
     }
     public static final class string {
         public static final int app_name=0x7f060000;
@@ -101,6 +110,34 @@ public final class R {
         public static final int settings_weekday_no=0x7f060022;
         public static final int settings_weekday_yes=0x7f060021;
         public static final int widget_loading=0x7f060001;
+        public static final int settings_scroll=0x7f06002e;
+        public static final int settings_scroll_no=0x7f060030;
+        public static final int settings_scroll_yes=0x7f06002f;
+        public static final int settings_ics_file=0x7f060031;
+        public static final int settings_ics_file_none=0x7f060032;
+        public static final int settings_ics_file_summary=0x7f060033;
+        public static final int settings_countdown=0x7f060034;
+        public static final int settings_countdown_yes=0x7f060035;
+        public static final int settings_countdown_no=0x7f060036;
+        public static final int format_countdown_start=0x7f060037;
+        public static final int format_countdown_end=0x7f060038;
+        public static final int widget_page_previous=0x7f060039;
+        public static final int widget_page_next=0x7f06003a;
+        public static final int format_birthday=0x7f06003b;
+        public static final int settings_contact_birthdays=0x7f06003c;
+        public static final int settings_contact_birthdays_yes=0x7f06003d;
+        public static final int settings_contact_birthdays_no=0x7f06003e;
+        public static final int settings_hide_titles=0x7f06003f;
+        public static final int settings_hide_titles_none=0x7f060040;
+        public static final int settings_hide_titles_summary=0x7f060041;
+        public static final int settings_show_titles=0x7f060042;
+        public static final int settings_show_titles_none=0x7f060043;
+        public static final int settings_show_titles_summary=0x7f060044;
+        public static final int settings_titles_rules=0x7f060045;
+        public static final int settings_calendars_loading=0x7f060046;
+        public static final int settings_calendars_filter=0x7f060047;
+        public static final int settings_calendars_filter_none=0x7f060048;
+        public static final int settings_calendars_filter_summary=0x7f060049;
     }
     public static final class style {
         public static final int PickAction=0x7f050001;
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Decides which alarms a widget sets after each of its renders. The
+ *         service sets them on the AlarmManager, WakeupBudget plays them on
+ *         a simulated clock, so both wake up at the same times.
+ */
+final class AlarmSchedule {
+	/**
+	 * Sets and cancels the alarms of one widget
+	 */
+	interface Alarms {
+		void set(String action, long time);
+
+		void cancel(String action);
+	}
+
+	/**
+	 * The alarms that switch a widget over to the next day, one of them is
+	 * kept scheduled at all times. Update alarms are scheduled beside them,
+	 * as those are put off while the screen is off.
+	 */
+	static final String[] DAY_ACTIONS = new String[] {
+			WidgetService.ACTION_PREPARE, WidgetService.ACTION_ROLLOVER };
+
+	/**
+	 * How long before midnight the next day is rendered
+	 */
+	static final long PREPARE_AHEAD = 5 * 60 * 1000;
+
+	/**
+	 * How long after an event ended or the day started the widget updates,
+	 * so it is sure to be over
+	 */
+	private static final long LATE = 1000;
+
+	private AlarmSchedule() {
+	}
+
+	/**
+	 * Schedules the widget after its lines were pushed
+	 * 
+	 * @param readAhead
+	 *            whether the lines of the next day are known, so they can
+	 *            be prepared ahead of midnight
+	 * @return whether the next day has to be prepared right away, as it is
+	 *         too late to schedule that
+	 */
+	static boolean published(final Alarms alarms, final WidgetLines lines,
+			final boolean readAhead, final boolean countdown) {
+		final TimeContext time = lines.time;
+		final long nextUpdate = lines.getNextUpdate(countdown);
+		final long prepareTime = time.tomorrowStart - PREPARE_AHEAD;
+
+		if (nextUpdate < time.tomorrowStart)
+			alarms.set(WidgetService.ACTION_UPDATE, nextUpdate + LATE);
+		else
+			alarms.cancel(WidgetService.ACTION_UPDATE);
+		if (!readAhead)
+			setDayAlarm(alarms, WidgetService.ACTION_ROLLOVER,
+					time.tomorrowStart + LATE);
+		else if (lines.now < prepareTime)
+			setDayAlarm(alarms, WidgetService.ACTION_PREPARE, prepareTime);
+		else
+			return true;
+		return false;
+	}
+
+	/**
+	 * Schedules the widget after the next day was prepared for it
+	 */
+	static void prepared(final Alarms alarms, final WidgetLines nextDayLines) {
+		setDayAlarm(alarms, WidgetService.ACTION_ROLLOVER,
+				nextDayLines.time.todayStart + LATE);
+	}
+
+	/**
+	 * Schedules the widget after the prepared lines of the new day were
+	 * pushed. The day after has not been read ahead, so it refreshes before
+	 * that starts. Should that be put off, the cached events are laid out at
+	 * midnight.
+	 */
+	static void pushedNextDay(final Alarms alarms, final WidgetLines lines,
+			final boolean countdown) {
+		final TimeContext time = lines.time;
+		final long nextUpdate = lines.getNextUpdate(countdown);
+		if (nextUpdate < time.tomorrowStart)
+			alarms.set(WidgetService.ACTION_UPDATE, nextUpdate + LATE);
+		else
+			alarms.set(WidgetService.ACTION_UPDATE, time.tomorrowStart
+					- PREPARE_AHEAD);
+		setDayAlarm(alarms, WidgetService.ACTION_ROLLOVER, time.tomorrowStart
+				+ LATE);
+	}
+
+	/**
+	 * Replaces the other day alarm by the one of the action
+	 */
+	private static void setDayAlarm(final Alarms alarms, final String action,
+			final long time) {
+		for (final String other : DAY_ACTIONS)
+			if (!other.equals(action))
+				alarms.cancel(other);
+		alarms.set(action, time);
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Keeps the in-memory caches of the widget process within their
+ *         budgets, and releases them when the system runs low on memory.
+ *         Caches with a lower priority are dropped first.
+ */
+final class Caches {
+	/**
+	 * A cache that can give up its entries
+	 */
+	interface Cache {
+		/**
+		 * @return roughly how many bytes the cache retains
+		 */
+		long getSize();
+
+		/**
+		 * Drops entries until the cache retains no more than the given
+		 * number of bytes
+		 */
+		void trim(long bytes);
+	}
+
+	/**
+	 * Only used to lay out a day ahead, rebuilt on the next refresh
+	 */
+	public static final int PRIORITY_LOW = 0;
+	/**
+	 * Saves querying the calendar provider again
+	 */
+	public static final int PRIORITY_NORMAL = 1;
+	/**
+	 * Needed to display a widget, reading it again is visible to the user
+	 */
+	public static final int PRIORITY_HIGH = 2;
+
+	/**
+	 * Rough sizes of an event and of a rendered line, including the objects
+	 * they hold on to
+	 */
+	private static final int EVENT_SIZE = 320;
+	private static final int CHAR_SIZE = 2;
+	public static final int LINE_SIZE = 400;
+
+	private static final class Registration {
+		final String name;
+		final int priority;
+		final long budget;
+		final Cache cache;
+
+		Registration(final String name, final int priority, final long budget,
+				final Cache cache) {
+			this.name = name;
+			this.priority = priority;
+			this.budget = budget;
+			this.cache = cache;
+		}
+	}
+
+	private static final List<Registration> caches = new ArrayList<Registration>();
+
+	private Caches() {
+	}
+
+	public static synchronized void register(final String name,
+			final int priority, final long budget, final Cache cache) {
+		caches.add(new Registration(name, priority, budget, cache));
+	}
+
+	/**
+	 * Shrinks every cache that has grown beyond its budget
+	 */
+	public static synchronized void trimToBudgets() {
+		for (Registration registration : caches)
+			if (registration.cache.getSize() > registration.budget)
+				registration.cache.trim(registration.budget);
+	}
+
+	/**
+	 * Called from {@link ComponentCallbacks2#onTrimMemory(int)}. While the
+	 * process is in the background, everything but the caches needed for
+	 * display is dropped. Once it is about to be killed, everything is.
+	 */
+	public static synchronized void onTrimMemory(final int level) {
+		final int keep;
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+			keep = PRIORITY_HIGH + 1;
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+			keep = PRIORITY_HIGH;
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			keep = PRIORITY_NORMAL;
+		else
+			keep = PRIORITY_LOW;
+
+		for (Registration registration : caches)
+			registration.cache.trim(registration.priority < keep ? 0
+					: registration.budget);
+	}
+
+	public static void onLowMemory() {
+		onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+	}
+
+	/**
+	 * @return roughly how many bytes the events retain
+	 */
+	public static long sizeOf(final List<Event> events) {
+		long size = 0;
+		for (Event event : events) {
+			size += EVENT_SIZE;
+			if (event.title != null)
+				size += event.title.length() * CHAR_SIZE;
+			if (event.location != null)
+				size += event.location.length() * CHAR_SIZE;
+		}
+		return size;
+	}
+
+	/**
+	 * @return the size each cache retains and its budget, for the log
+	 */
+	public static synchronized String dump() {
+		final StringBuilder builder = new StringBuilder("Caches:");
+		long total = 0;
+		for (Registration registration : caches) {
+			final long size = registration.cache.getSize();
+			total += size;
+			builder.append(' ').append(registration.name).append('=')
+					.append(size / 1024).append('/')
+					.append(registration.budget / 1024).append("kB");
+		}
+		builder.append(" total=").append(total / 1024).append("kB");
+		return builder.toString();
+	}
+}
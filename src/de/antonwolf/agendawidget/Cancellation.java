@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Lets a newer refresh stop one it superseded. From Jelly Bean on,
+ *         provider queries are cancelled through a CancellationSignal, before
+ *         that only the loops reading events check for it.
+ */
+final class Cancellation {
+	/**
+	 * Thrown out of a refresh once it was cancelled
+	 */
+	static final class CancelledException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	private volatile boolean cancelled = false;
+
+	/**
+	 * A CancellationSignal where there is one, see CancellationSignals
+	 */
+	private final Object signal;
+
+	Cancellation() {
+		signal = Build.VERSION.SDK_INT >= 16 ? CancellationSignals.create()
+				: null;
+	}
+
+	public void cancel() {
+		cancelled = true;
+		if (signal != null)
+			CancellationSignals.cancel(signal);
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @throws CancelledException
+	 *             if the refresh was cancelled
+	 */
+	public void check() {
+		if (cancelled)
+			throw new CancelledException();
+	}
+
+	/**
+	 * Queries the provider, aborting the query if the refresh is cancelled
+	 * meanwhile. Moving the cursor can throw as well while the provider
+	 * still fills it.
+	 * 
+	 * @throws CancelledException
+	 *             if the refresh was cancelled
+	 */
+	public Cursor query(final ContentResolver resolver, final Uri uri,
+			final String[] projection, final String selection,
+			final String[] selectionArgs, final String sortOrder) {
+		check();
+		if (signal == null)
+			return resolver.query(uri, projection, selection, selectionArgs,
+					sortOrder);
+		return CancellationSignals.query(resolver, uri, projection,
+				selection, selectionArgs, sortOrder, signal);
+	}
+}
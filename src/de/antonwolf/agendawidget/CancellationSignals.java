@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         The CancellationSignal of a Cancellation. Only loaded from Jelly
+ *         Bean on, older devices cannot resolve the classes it uses.
+ */
+final class CancellationSignals {
+	private CancellationSignals() {
+	}
+
+	static Object create() {
+		return new CancellationSignal();
+	}
+
+	static void cancel(final Object signal) {
+		((CancellationSignal) signal).cancel();
+	}
+
+	/**
+	 * @throws Cancellation.CancelledException
+	 *             if the signal was cancelled
+	 */
+	static Cursor query(final ContentResolver resolver, final Uri uri,
+			final String[] projection, final String selection,
+			final String[] selectionArgs, final String sortOrder,
+			final Object signal) {
+		try {
+			return resolver.query(uri, projection, selection, selectionArgs,
+					sortOrder, (CancellationSignal) signal);
+		} catch (final OperationCanceledException e) {
+			throw new Cancellation.CancelledException();
+		}
+	}
+}
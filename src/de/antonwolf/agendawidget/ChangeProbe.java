@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import de.antonwolf.agendawidget.WidgetInfo.CalendarPreferences;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         A cheap check whether anything a widget displays has changed. It
+ *         fingerprints the event rows of the enabled calendars instead of
+ *         expanding their instances. Sync bookkeeping columns are left out,
+ *         so writes that only touch them do not change the fingerprint.
+ */
+final class ChangeProbe {
+	private final static Uri EVENTS_URI = Uri
+			.parse("content://com.android.calendar/events");
+	private final static int COL_CALENDAR = 12;
+	private final static String SELECTION_FORMAT = "calendar_id IN (%1$s) AND dtstart <= %3$d AND (lastDate IS NULL OR lastDate >= %2$d)";
+
+	private ChangeProbe() {
+	}
+
+	/**
+	 * @return a fingerprint of everything that affects the widget's events
+	 *         between start and end
+	 * @throws Cancellation.CancelledException
+	 *             if the refresh probing was cancelled
+	 */
+	public static long fingerprint(final Context context,
+			final WidgetInfo info, final long start, final long end,
+			final Cancellation cancellation) {
+		long fingerprint = 1;
+		if (info.icsFile.length() > 0) {
+			final File file = new File(info.icsFile);
+			fingerprint = 31 * fingerprint + file.lastModified();
+			fingerprint = 31 * fingerprint + file.length();
+		}
+		if (isReadingContacts(info))
+			fingerprint = 31 * fingerprint
+					+ ContactBirthdays.getFingerprint(context);
+		final StringBuilder calendarIds = new StringBuilder();
+
+		// sorted, so the order does not depend on the map
+		for (Entry<Integer, CalendarPreferences> calendar : new TreeMap<Integer, CalendarPreferences>(
+				info.calendars).entrySet()) {
+			if (!calendar.getValue().enabled)
+				continue;
+			fingerprint = 31 * fingerprint + calendar.getKey();
+			fingerprint = 31 * fingerprint + calendar.getValue().color;
+			if (calendarIds.length() > 0)
+				calendarIds.append(',');
+			calendarIds.append(calendar.getKey());
+		}
+		if (calendarIds.length() == 0)
+			return fingerprint;
+
+		final String[] projection = getProjection();
+		final String selection = String.format(SELECTION_FORMAT,
+				calendarIds, start, end);
+		Cursor cursor = null;
+		try {
+			cursor = cancellation.query(context.getContentResolver(),
+					EVENTS_URI, projection, selection, null, "_id ASC");
+			while (cursor.moveToNext()) {
+				cancellation.check();
+				for (int i = 0; i < projection.length; i++) {
+					final String value = cursor.getString(i);
+					fingerprint = 31 * fingerprint
+							+ (value == null ? 0 : value.hashCode());
+				}
+			}
+			return 31 * fingerprint + cursor.getCount();
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+	}
+
+	/**
+	 * @return whether the widget shows the birthdays of the contacts
+	 */
+	static boolean isReadingContacts(final WidgetInfo info) {
+		return info.contactBirthdays
+				&& !info.birthdays.equals(WidgetInfo.BIRTHDAY_HIDE);
+	}
+
+	/**
+	 * @return a fingerprint of the event rows of each calendar between start
+	 *         and end, so calendars that did not change can be told apart
+	 * @throws Cancellation.CancelledException
+	 *             if the refresh probing was cancelled
+	 */
+	public static Map<Integer, Long> fingerprintCalendars(
+			final Context context, final Collection<Integer> calendars,
+			final long start, final long end, final Cancellation cancellation) {
+		final Map<Integer, Long> fingerprints = new HashMap<Integer, Long>();
+		final StringBuilder calendarIds = new StringBuilder();
+		for (Integer calendarId : calendars) {
+			fingerprints.put(calendarId, 1L);
+			if (calendarIds.length() > 0)
+				calendarIds.append(',');
+			calendarIds.append(calendarId);
+		}
+		if (calendarIds.length() == 0)
+			return fingerprints;
+
+		final String[] projection = getProjection();
+		final String selection = String.format(SELECTION_FORMAT,
+				calendarIds, start, end);
+		Cursor cursor = null;
+		try {
+			cursor = cancellation.query(context.getContentResolver(),
+					EVENTS_URI, projection, selection, null, "_id ASC");
+			while (cursor.moveToNext()) {
+				cancellation.check();
+				final Integer calendarId = cursor.getInt(COL_CALENDAR);
+				long fingerprint = fingerprints.get(calendarId);
+				for (int i = 0; i < projection.length; i++) {
+					final String value = cursor.getString(i);
+					fingerprint = 31 * fingerprint
+							+ (value == null ? 0 : value.hashCode());
+				}
+				fingerprints.put(calendarId, fingerprint);
+			}
+			return fingerprints;
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+	}
+
+	/**
+	 * The calendar color is joined into each row, the instance index keeps
+	 * it with each event and has to be told when it changed
+	 */
+	private static String[] getProjection() {
+		if (Build.VERSION.SDK_INT < 14)
+			return new String[] { "_id", "title", "eventLocation", "dtstart",
+					"dtend", "duration", "allDay", "rrule", "rdate", "exdate",
+					"lastDate", "hasAlarm", "calendar_id", "eventStatus",
+					"color" };
+		return new String[] { "_id", "title", "eventLocation", "dtstart",
+				"dtend", "duration", "allDay", "rrule", "rdate", "exdate",
+				"lastDate", "hasAlarm", "calendar_id", "eventStatus", "deleted",
+				"calendar_color" };
+	}
+}
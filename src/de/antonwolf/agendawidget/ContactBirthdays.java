@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds;
+import android.provider.ContactsContract.Data;
+import android.util.Log;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         The birthdays of the contacts, sorted by the day of the year they
+ *         are on. Read once and kept until the contacts change, so the next
+ *         birthdays are found by a lookup instead of matching the titles of
+ *         every all-day event.
+ */
+final class ContactBirthdays {
+	private static final String TAG = "AgendaWidget";
+
+	/**
+	 * Birthdays from the contacts have no calendar to take the color from
+	 */
+	static final int COLOR = 0xff7f7f7f;
+
+	private final static String SELECTION = Data.MIMETYPE + " = ? AND "
+			+ CommonDataKinds.Event.TYPE + " = "
+			+ CommonDataKinds.Event.TYPE_BIRTHDAY;
+	private final static String[] PROJECTION = new String[] {
+			Data.DISPLAY_NAME, CommonDataKinds.Event.START_DATE };
+	private final static int COL_NAME = 0;
+	private final static int COL_DATE = 1;
+
+	/**
+	 * Full dates as well as the year-less "--MM-DD" some accounts sync
+	 */
+	private final static Pattern DATE_PATTERN = Pattern
+			.compile("^(?:\\d{4}|-)-?(\\d{2})-?(\\d{2})");
+
+	private final static long BUDGET = 128 * 1024;
+	private final static int ENTRY_SIZE = 48;
+
+	/**
+	 * month * 32 + day of each birthday, ascending, and whose it is
+	 */
+	private static int[] dates;
+	private static String[] names;
+
+	/**
+	 * The names as birthdays from the calendars are compared to them
+	 */
+	private static String[] foldedNames;
+	private static long fingerprint;
+	private static long size;
+
+	/**
+	 * Whether the contacts changed since they were read. Set from the main
+	 * thread, which must not wait for the class lock.
+	 */
+	private static volatile boolean stale = true;
+
+	static {
+		Caches.register("contact birthdays", Caches.PRIORITY_NORMAL, BUDGET,
+				new Caches.Cache() {
+					@Override
+					public long getSize() {
+						synchronized (ContactBirthdays.class) {
+							return dates == null ? 0 : size;
+						}
+					}
+
+					@Override
+					public void trim(final long bytes) {
+						synchronized (ContactBirthdays.class) {
+							if (bytes < getSize()) {
+								dates = null;
+								names = null;
+								foldedNames = null;
+							}
+						}
+					}
+				});
+	}
+
+	private final static class Entry implements Comparable<Entry> {
+		final int date;
+		final String name;
+
+		Entry(final int date, final String name) {
+			this.date = date;
+			this.name = name;
+		}
+
+		@Override
+		public int compareTo(final Entry other) {
+			if (date != other.date)
+				return date < other.date ? -1 : 1;
+			return name.compareTo(other.name);
+		}
+	}
+
+	private ContactBirthdays() {
+	}
+
+	/**
+	 * Called when the contacts provider reports a change
+	 */
+	public static void markStale() {
+		stale = true;
+	}
+
+	/**
+	 * @return a fingerprint of the birthdays, read again if the contacts
+	 *         changed
+	 */
+	public static long getFingerprint(final Context context) {
+		load(context);
+		synchronized (ContactBirthdays.class) {
+			return fingerprint;
+		}
+	}
+
+	/**
+	 * Reads the birthdays again if the contacts changed. The contacts are
+	 * queried without holding the class lock.
+	 */
+	private static void load(final Context context) {
+		synchronized (ContactBirthdays.class) {
+			if (!stale && dates != null)
+				return;
+			// a change reported while reading marks them stale again
+			stale = false;
+		}
+		try {
+			read(context);
+		} catch (final RuntimeException e) {
+			stale = true;
+			throw e;
+		}
+	}
+
+	private static void read(final Context context) {
+
+		final List<Entry> entries = new ArrayList<Entry>();
+		Cursor cursor = null;
+		try {
+			cursor = context.getContentResolver().query(Data.CONTENT_URI,
+					PROJECTION, SELECTION,
+					new String[] { CommonDataKinds.Event.CONTENT_ITEM_TYPE },
+					null);
+			while (cursor != null && cursor.moveToNext()) {
+				final String name = cursor.getString(COL_NAME);
+				final String date = cursor.getString(COL_DATE);
+				if (name == null || date == null)
+					continue;
+				final Matcher matcher = DATE_PATTERN.matcher(date);
+				if (!matcher.find())
+					continue;
+				entries.add(new Entry(Integer.parseInt(matcher.group(1)) * 32
+						+ Integer.parseInt(matcher.group(2)), name));
+			}
+		} catch (final SecurityException e) {
+			Log.w(TAG, "Cannot read the contacts", e);
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		Collections.sort(entries);
+
+		final int[] dates = new int[entries.size()];
+		final String[] names = new String[entries.size()];
+		final String[] foldedNames = new String[entries.size()];
+		long fingerprint = 1;
+		long size = 0;
+		for (int i = 0; i < dates.length; i++) {
+			final Entry entry = entries.get(i);
+			dates[i] = entry.date;
+			names[i] = entry.name;
+			foldedNames[i] = Event.foldName(entry.name);
+			fingerprint = 31 * (31 * fingerprint + entry.date)
+					+ entry.name.hashCode();
+			size += ENTRY_SIZE + entry.name.length() * 4;
+		}
+		synchronized (ContactBirthdays.class) {
+			ContactBirthdays.dates = dates;
+			ContactBirthdays.names = names;
+			ContactBirthdays.foldedNames = foldedNames;
+			ContactBirthdays.fingerprint = fingerprint;
+			ContactBirthdays.size = size;
+		}
+		Log.d(TAG, "Read " + dates.length + " birthdays from the contacts");
+	}
+
+	/**
+	 * @return whether the contacts have the birthday of the name on the day,
+	 *         so a birthday from the calendars would show it twice
+	 */
+	public static boolean contains(final Context context,
+			final int julianDay, final String name) {
+		int[] dates;
+		String[] foldedNames;
+		do {
+			load(context);
+			synchronized (ContactBirthdays.class) {
+				dates = ContactBirthdays.dates;
+				foldedNames = ContactBirthdays.foldedNames;
+			}
+		} while (dates == null); // trimmed right after reading
+
+		final int key = getKey(julianDay);
+		final String folded = Event.foldName(name);
+		for (int i = find(dates, key); i < dates.length && dates[i] == key; i++)
+			if (foldedNames[i].equals(folded))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return whether any contact has the birthday on the day, a cheap check
+	 *         before the title of an event is matched
+	 */
+	public static boolean hasBirthdayOn(final Context context,
+			final int julianDay) {
+		int[] dates;
+		do {
+			load(context);
+			synchronized (ContactBirthdays.class) {
+				dates = ContactBirthdays.dates;
+			}
+		} while (dates == null); // trimmed right after reading
+
+		final int key = getKey(julianDay);
+		final int position = find(dates, key);
+		return position < dates.length && dates[position] == key;
+	}
+
+	private static int getKey(final int julianDay) {
+		final int[] date = DayTable.getDate(julianDay);
+		return date[1] * 32 + date[2];
+	}
+
+	/**
+	 * @return the first position of the key in the sorted dates, or where it
+	 *         would be inserted
+	 */
+	private static int find(final int[] dates, final int key) {
+		int low = 0;
+		int high = dates.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (dates[middle] < key)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * @param asBirthdays
+	 *            whether the events are shown as birthdays, or else as
+	 *            normal all-day events titled by the format
+	 * @return the birthdays from the day of the time context until end, in
+	 *         the order of the days they are on
+	 */
+	public static EventSource open(final Context context,
+			final boolean asBirthdays, final String titleFormat,
+			final TimeContext time, final long end) {
+		int[] dates;
+		String[] names;
+		do {
+			load(context);
+			synchronized (ContactBirthdays.class) {
+				dates = ContactBirthdays.dates;
+				names = ContactBirthdays.names;
+			}
+		} while (dates == null); // trimmed right after reading
+		final DayTable days = DayTable.get();
+		return new Source(dates, names, asBirthdays, titleFormat, days,
+				time.julianDay, days.getJulianDay(end));
+	}
+
+	private final static class Source implements EventSource {
+		private final int[] dates;
+		private final String[] names;
+		private final boolean asBirthdays;
+		private final String titleFormat;
+		private final DayTable days;
+		private final int endDay;
+		private int year;
+		private int position;
+		private boolean closed = false;
+
+		Source(final int[] dates, final String[] names,
+				final boolean asBirthdays, final String titleFormat,
+				final DayTable days, final int startDay, final int endDay) {
+			this.dates = dates;
+			this.names = names;
+			this.asBirthdays = asBirthdays;
+			this.titleFormat = titleFormat;
+			this.days = days;
+			this.endDay = endDay;
+
+			// the first birthday on or after the start day
+			final int[] date = DayTable.getDate(startDay);
+			year = date[0];
+			final int start = date[1] * 32 + date[2];
+			int low = 0;
+			int high = dates.length;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (dates[middle] < start)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			position = low;
+		}
+
+		@Override
+		public Event next() {
+			if (dates.length == 0 || closed)
+				return null;
+			if (position == dates.length) {
+				position = 0;
+				year++;
+			}
+
+			// february 29th falls on march 1st in other years
+			final int julianDay = DayTable.getJulianDay(year,
+					dates[position] / 32, dates[position] % 32);
+			if (julianDay > endDay)
+				return null;
+
+			final Event event = new Event();
+			event.allDay = true;
+			event.color = COLOR;
+			event.isBirthday = asBirthdays;
+			event.title = asBirthdays ? names[position] : String.format(
+					titleFormat, names[position]);
+			event.startDay = julianDay;
+			event.endDay = julianDay;
+			event.relocate(days);
+			position++;
+			return event;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
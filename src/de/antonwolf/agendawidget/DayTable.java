@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import android.text.format.Time;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         The local midnights of the days around today, in the current time
+ *         zone. Built once a day with Time, which knows the DST rules, so
+ *         that classifying millis and placing all-day events afterwards is
+ *         a lookup or binary search without allocation.
+ */
+final class DayTable {
+	private final static int DAYS_BEFORE = 400;
+	private final static int DAYS_AFTER = 800;
+	private final static int EPOCH_JULIAN_DAY = 2440588;
+	private final static long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+	private static DayTable current;
+
+	private final String timezone;
+	private final int firstDay;
+	private final long[] midnights;
+
+	private DayTable(final String timezone, final int today) {
+		this.timezone = timezone;
+		firstDay = today - DAYS_BEFORE;
+		midnights = new long[DAYS_BEFORE + DAYS_AFTER + 1];
+		final Time day = new Time(timezone);
+		for (int i = 0; i < midnights.length; i++)
+			midnights[i] = day.setJulianDay(firstDay + i);
+	}
+
+	private DayTable(final String timezone, final int firstDay,
+			final long[] midnights) {
+		this.timezone = timezone;
+		this.firstDay = firstDay;
+		this.midnights = midnights;
+	}
+
+	/**
+	 * @return a table for the zone, which need not be the current one
+	 */
+	static DayTable forZone(final String timezone, final int today) {
+		return new DayTable(timezone, today);
+	}
+
+	/**
+	 * @return a table for a zone that keeps the same offset from UTC all
+	 *         year, built without the time zone database. For simulations.
+	 */
+	static DayTable withOffset(final long offsetMillis, final int today) {
+		final int firstDay = today - DAYS_BEFORE;
+		final long[] midnights = new long[DAYS_BEFORE + DAYS_AFTER + 1];
+		for (int i = 0; i < midnights.length; i++)
+			midnights[i] = (firstDay + i - EPOCH_JULIAN_DAY)
+					* DAY_IN_MILLIS - offsetMillis;
+		return new DayTable("GMT" + offsetMillis, firstDay, midnights);
+	}
+
+	/**
+	 * @return the table for the current time zone, rebuilt when the zone or
+	 *         the day changed
+	 */
+	public static synchronized DayTable get() {
+		final String timezone = Time.getCurrentTimezone();
+		final long now = System.currentTimeMillis();
+		if (current == null || !current.timezone.equals(timezone)
+				|| now < current.midnights[DAYS_BEFORE]
+				|| now >= current.midnights[DAYS_BEFORE + 1]) {
+			final Time time = new Time(timezone);
+			time.set(now);
+			current = new DayTable(timezone, Time.getJulianDay(now,
+					time.gmtoff));
+		}
+		return current;
+	}
+
+	/**
+	 * @return the local midnight the julian day starts at
+	 */
+	public long getDayStart(final int julianDay) {
+		final int index = julianDay - firstDay;
+		if (0 <= index && index < midnights.length)
+			return midnights[index];
+		return new Time(timezone).setJulianDay(julianDay);
+	}
+
+	/**
+	 * @return the julian day the millis are on locally
+	 */
+	public int getJulianDay(final long millis) {
+		if (millis < midnights[0] || millis >= midnights[midnights.length - 1]) {
+			final Time time = new Time(timezone);
+			time.set(millis);
+			return Time.getJulianDay(millis, time.gmtoff);
+		}
+
+		int low = 0;
+		int high = midnights.length - 1;
+		while (high - low > 1) {
+			final int middle = (low + high) >>> 1;
+			if (midnights[middle] <= millis)
+				low = middle;
+			else
+				high = middle;
+		}
+		return firstDay + low;
+	}
+
+	/**
+	 * @return the julian day of a date of the gregorian calendar
+	 */
+	public static int getJulianDay(int year, final int month, final int day) {
+		year -= month <= 2 ? 1 : 0;
+		final int era = (year >= 0 ? year : year - 399) / 400;
+		final int yearOfEra = year - era * 400;
+		final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5
+				+ day - 1;
+		final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+				+ dayOfYear;
+		return era * 146097 + dayOfEra - 719468 + EPOCH_JULIAN_DAY;
+	}
+
+	/**
+	 * @return year, month (1-12) and day of the julian day
+	 */
+	public static int[] getDate(final int julianDay) {
+		final int days = julianDay - EPOCH_JULIAN_DAY + 719468;
+		final int era = (days >= 0 ? days : days - 146096) / 146097;
+		final int dayOfEra = days - era * 146097;
+		final int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		final int dayOfYear = dayOfEra
+				- (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		final int monthIndex = (5 * dayOfYear + 2) / 153;
+		final int day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+		final int month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+		final int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		return new int[] { year, month, day };
+	}
+
+	/**
+	 * @return the day of the week, 0 being sunday
+	 */
+	public static int getWeekDay(final int julianDay) {
+		return (julianDay + 1) % 7;
+	}
+}
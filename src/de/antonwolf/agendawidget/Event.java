@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.text.Normalizer;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import android.os.Build;
+
+/**
+ * A single calendar instance as read from the provider
+ * 
+ * @author Anton Wolf
+ */
+final class Event {
+	private final static Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+
+	/**
+	 * Orders birthdays by day, then by name, so they are paired into rows
+	 * the same way whichever source they came from first
+	 */
+	public final static Comparator<Event> BIRTHDAY_ORDER = new Comparator<Event>() {
+		@Override
+		public int compare(final Event left, final Event right) {
+			if (left.startDay != right.startDay)
+				return left.startDay < right.startDay ? -1 : 1;
+			return left.getBirthdayName().compareTo(right.getBirthdayName());
+		}
+	};
+
+	public boolean allDay = false;
+	public int color;
+	public int endDay;
+	public long endMillis;
+	public boolean hasAlarm;
+	public boolean isBirthday = false;
+	public String location;
+	public long startMillis;
+	public int startDay;
+	public String title;
+
+	/**
+	 * The title as birthdays are compared by, see getBirthdayName()
+	 */
+	private String birthdayName;
+
+	/**
+	 * Recomputes the times for the time zone of the table. All-day events
+	 * keep their julian days, other events keep their millis.
+	 */
+	public void relocate(final DayTable days) {
+		if (allDay) {
+			startMillis = days.getDayStart(startDay);
+			endMillis = days.getDayStart(endDay);
+		} else {
+			startDay = days.getJulianDay(startMillis);
+			endDay = days.getJulianDay(endMillis);
+		}
+	}
+
+	/**
+	 * @return a copy that can be changed without affecting this event
+	 */
+	public Event copy() {
+		final Event event = new Event();
+		event.allDay = allDay;
+		event.color = color;
+		event.endDay = endDay;
+		event.endMillis = endMillis;
+		event.hasAlarm = hasAlarm;
+		event.isBirthday = isBirthday;
+		event.location = location;
+		event.startMillis = startMillis;
+		event.startDay = startDay;
+		event.title = title;
+		return event;
+	}
+
+	/**
+	 * @return the title with unicode forms, white space and case folded, so
+	 *         a birthday synced from several accounts compares equal
+	 */
+	public String getBirthdayName() {
+		if (birthdayName == null)
+			birthdayName = foldName(title);
+		return birthdayName;
+	}
+
+	/**
+	 * @return the name with unicode forms, white space and case folded
+	 */
+	static String foldName(String name) {
+		if (Build.VERSION.SDK_INT >= 9)
+			name = Normalizer.normalize(name, Normalizer.Form.NFKC);
+		return WHITESPACE_PATTERN.matcher(name.trim()).replaceAll(" ")
+				.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Birthdays are equal if they are on the same day and of the same name,
+	 * other events only to themselves
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (o == this)
+			return true;
+		if (!(o instanceof Event))
+			return false;
+
+		final Event other = (Event) o;
+
+		return isBirthday && other.isBirthday
+				&& other.startDay == this.startDay
+				&& other.getBirthdayName().equals(this.getBirthdayName());
+	}
+
+	@Override
+	public int hashCode() {
+		if (!isBirthday)
+			return System.identityHashCode(this);
+		return 31 * startDay + getBirthdayName().hashCode();
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.Formatter;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Build;
+import android.os.SystemClock;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.RelativeSizeSpan;
+import android.view.View;
+import android.widget.RemoteViews;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Turns events into the styled text of a widget line
+ */
+final class EventFormatter {
+	private final static String COLOR_DOT = "■\t";
+	private final static String COLOR_HIDDEN = "\t";
+	private final static String SEPARATOR_COMMA = ", ";
+
+	private final static long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+	private final static int DATETIME_COLOR = 0xb8ffffff;
+
+	/**
+	 * Chronometers can only count down from Nougat on
+	 */
+	static final int COUNTDOWN_MIN_SDK = 24;
+
+	private final WidgetInfo info;
+	private final TimeContext time;
+	private final String yesterday;
+	private final String today;
+	private final String tomorrow;
+	private final String[] dayOfWeek;
+	private final String countdownStart;
+	private final String countdownEnd;
+
+	public EventFormatter(final Context context, final WidgetInfo info,
+			final TimeContext time) {
+		this.info = info;
+		this.time = time;
+
+		final Resources res = context.getResources();
+		yesterday = res.getString(R.string.format_yesterday);
+		today = res.getString(R.string.format_today);
+		tomorrow = res.getString(R.string.format_tomorrow);
+		dayOfWeek = res.getStringArray(R.array.format_day_of_week);
+		countdownStart = res.getString(R.string.format_countdown_start);
+		countdownEnd = res.getString(R.string.format_countdown_end);
+	}
+
+	/**
+	 * Lets the launcher tick the time until the next event starts or a
+	 * running one ends, so the service only wakes when the event does
+	 * 
+	 * @param next
+	 *            whether this is the next event to start
+	 * @param now
+	 *            the time the lines were laid out for
+	 */
+	public void setCountdown(final RemoteViews view, final Event event,
+			final boolean next, final long now) {
+		String format = null;
+		long target = 0;
+		if (info.countdown && !event.allDay
+				&& Build.VERSION.SDK_INT >= COUNTDOWN_MIN_SDK) {
+			if (next) {
+				format = countdownStart;
+				target = event.startMillis;
+			} else if (event.startMillis <= now && now < event.endMillis) {
+				format = countdownEnd;
+				target = event.endMillis;
+			}
+		}
+
+		if (format == null) {
+			view.setViewVisibility(R.id.event_countdown, View.GONE);
+			return;
+		}
+		// chronometers run on the elapsed realtime clock
+		final long base = SystemClock.elapsedRealtime()
+				+ (target - System.currentTimeMillis());
+		view.setChronometer(R.id.event_countdown, base, format, true);
+		view.setBoolean(R.id.event_countdown, "setCountDown", true);
+		view.setViewVisibility(R.id.event_countdown, View.VISIBLE);
+	}
+
+	public CharSequence format(final Event event, final boolean showColor) {
+		if (event == null)
+			return "";
+
+		final SpannableStringBuilder builder = new SpannableStringBuilder();
+
+		if (showColor) {
+			if (event.isBirthday)
+				builder.append(COLOR_HIDDEN);
+			else {
+				builder.append(COLOR_DOT);
+				builder.setSpan(new ForegroundColorSpan(event.color), 0, 1,
+						Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+			}
+		}
+
+		final int timeStartPos = builder.length();
+		formatTime(builder, event);
+		builder.append(' ');
+		final int timeEndPos = builder.length();
+		builder.setSpan(new ForegroundColorSpan(DATETIME_COLOR), timeStartPos,
+				timeEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+		builder.append(event.title);
+		final int titleEndPos = builder.length();
+		builder.setSpan(new ForegroundColorSpan(0xffffffff), timeEndPos,
+				titleEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+		if (event.location != null) {
+			builder.append(SEPARATOR_COMMA);
+			builder.append(event.location);
+			builder.setSpan(new ForegroundColorSpan(DATETIME_COLOR),
+					titleEndPos, builder.length(),
+					Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		}
+
+		final float size = Integer.parseInt(info.size) / 100f;
+		builder.setSpan(new RelativeSizeSpan(size), 0, builder.length(), 0);
+
+		return builder;
+	}
+
+	private void formatTime(final SpannableStringBuilder builder,
+			final Event event) {
+		final Formatter formatter = new Formatter(builder);
+
+		final boolean isStartToday = (time.todayStart <= event.startMillis && event.startMillis <= time.tomorrowStart);
+		final boolean isEndToday = (time.todayStart <= event.endMillis && event.endMillis <= time.tomorrowStart);
+		final boolean showStartDay = !isStartToday || !isEndToday
+				|| event.allDay;
+
+		// all-Day events
+		if (event.allDay) {
+			if (showStartDay)
+				appendDay(formatter, builder, event.startMillis,
+						event.startDay);
+
+			if (event.startDay != event.endDay) {
+				builder.append('-');
+				appendDay(formatter, builder, event.endMillis, event.endDay);
+			}
+			return;
+		}
+
+		// events with no duration
+		if (!info.endTime || event.startMillis == event.endMillis) {
+			if (showStartDay) {
+				appendDay(formatter, builder, event.startMillis,
+						event.startDay);
+				builder.append(' ');
+			}
+			appendHour(formatter, builder, event.startMillis);
+			return;
+		}
+
+		// events with duration
+		if (showStartDay) {
+			appendDay(formatter, builder, event.startMillis, event.startDay);
+			builder.append(' ');
+		}
+		appendHour(formatter, builder, event.startMillis);
+		builder.append('-');
+
+		if (Math.abs(event.endMillis - event.startMillis) > DAY_IN_MILLIS) {
+			appendDay(formatter, builder, event.endMillis, event.endDay);
+			builder.append(' ');
+		}
+		appendHour(formatter, builder, event.endMillis);
+	}
+
+	private void appendHour(final Formatter formatter,
+			final SpannableStringBuilder builder, final long millis) {
+		if (info.twentyfourHours)
+			formatter.format("%1$tk:%1$tM", millis);
+		else {
+			formatter.format("%1$tl:%1$tM", millis);
+			int start = builder.length();
+			formatter.format("%1$tp", millis);
+			int end = builder.length();
+			builder.setSpan(new RelativeSizeSpan(0.7f), start, end, 0);
+		}
+	}
+
+	private void appendDay(final Formatter formatter,
+			final SpannableStringBuilder builder, final long millis,
+			final int julianDay) {
+		final boolean tomorrowYesterday = info.tomorrowYesterday;
+		final long specialStart = tomorrowYesterday ? time.yesterdayStart
+				: time.todayStart;
+		final long specialEnd = tomorrowYesterday ? time.dayAfterTomorrowStart
+				: time.tomorrowStart;
+		final boolean weekday = info.weekday;
+		final long weekEnd = weekday ? time.oneWeekFromNow : time.tomorrowStart;
+
+		if (specialStart <= millis && millis < specialEnd) {
+			final int from = builder.length();
+			if (millis < time.todayStart)
+				builder.append(yesterday);
+			else if (millis < time.tomorrowStart)
+				builder.append(today);
+			else
+				builder.append(tomorrow);
+
+			final RelativeSizeSpan smaller = new RelativeSizeSpan(0.7f);
+			builder.setSpan(smaller, from, builder.length(), 0);
+		} else if (time.todayStart <= millis && millis < weekEnd) // this week?
+			builder.append(dayOfWeek[DayTable.getWeekDay(julianDay)]);
+		else if (time.yearStart <= millis && millis < time.yearEnd) // this year?
+			formatter.format(info.dateFormat.shortFormat, millis);
+		else
+			// not this year
+			formatter.format(info.dateFormat.longFormat, millis);
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.List;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.View;
+import android.widget.RemoteViews;
+import android.widget.RemoteViewsService;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Feeds the rows of a scrollable widget. WidgetService reads the
+ *         events and leaves a snapshot here; rows are only formatted once
+ *         the launcher asks for them.
+ */
+public final class EventListService extends RemoteViewsService {
+	/**
+	 * Collection widgets are available since Honeycomb
+	 */
+	static final int MIN_SDK = 11;
+
+	private static final String TAG = "AgendaWidget";
+
+	/**
+	 * The events a scrollable widget displays, as read by WidgetService
+	 */
+	private final static class Snapshot {
+		final WidgetInfo info;
+		final TimeContext time;
+		final long now;
+		final List<Event> birthdays;
+		final List<Event> events;
+		final Event next;
+
+		Snapshot(final WidgetInfo info, final WidgetLines lines) {
+			this.info = info;
+			time = lines.time;
+			now = lines.now;
+			birthdays = lines.birthdays;
+			events = lines.agenda;
+			next = lines.getNextStart();
+		}
+	}
+
+	private final static SparseArray<Snapshot> snapshots = new SparseArray<Snapshot>();
+	private final static long SNAPSHOTS_BUDGET = 512 * 1024;
+
+	static {
+		Caches.register("snapshots", Caches.PRIORITY_HIGH, SNAPSHOTS_BUDGET,
+				new Caches.Cache() {
+					@Override
+					public long getSize() {
+						synchronized (snapshots) {
+							long size = 0;
+							for (int i = 0; i < snapshots.size(); i++)
+								size += Caches.sizeOf(snapshots.valueAt(i).birthdays)
+										+ Caches.sizeOf(snapshots.valueAt(i).events);
+							return size;
+						}
+					}
+
+					@Override
+					public void trim(final long bytes) {
+						synchronized (snapshots) {
+							while (snapshots.size() > 0 && getSize() > bytes)
+								snapshots.remove(snapshots.keyAt(0));
+						}
+					}
+				});
+	}
+
+	static void putSnapshot(final int widgetId, final WidgetInfo info,
+			final WidgetLines lines) {
+		synchronized (snapshots) {
+			snapshots.put(widgetId, new Snapshot(info, lines));
+		}
+	}
+
+	static void removeSnapshot(final int widgetId) {
+		synchronized (snapshots) {
+			snapshots.remove(widgetId);
+		}
+	}
+
+	private static Snapshot getSnapshot(final int widgetId) {
+		synchronized (snapshots) {
+			return snapshots.get(widgetId);
+		}
+	}
+
+	@Override
+	public void onTrimMemory(final int level) {
+		super.onTrimMemory(level);
+		Caches.onTrimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		Caches.onLowMemory();
+	}
+
+	@Override
+	public RemoteViewsFactory onGetViewFactory(final Intent intent) {
+		final int widgetId = Integer.parseInt(intent.getData().getHost());
+		return new EventListFactory(getApplicationContext(), widgetId);
+	}
+
+	private final static class EventListFactory implements RemoteViewsFactory {
+		private final Context context;
+		private final int widgetId;
+		private Snapshot snapshot;
+		private EventFormatter formatter;
+
+		EventListFactory(final Context context, final int widgetId) {
+			this.context = context;
+			this.widgetId = widgetId;
+		}
+
+		@Override
+		public void onCreate() {
+		}
+
+		@Override
+		public void onDataSetChanged() {
+			snapshot = getSnapshot(widgetId);
+			if (snapshot == null) {
+				// process was restarted, let WidgetService read the events
+				formatter = null;
+				final Intent intent = new Intent("update", Uri
+						.parse("widget://" + widgetId), context,
+						WidgetService.class);
+				Log.d(TAG, "Sending " + intent);
+				context.startService(intent);
+				return;
+			}
+			formatter = new EventFormatter(context, snapshot.info,
+					snapshot.time);
+		}
+
+		@Override
+		public void onDestroy() {
+			snapshot = null;
+			formatter = null;
+		}
+
+		private int getBirthdayRows() {
+			return (snapshot.birthdays.size() + 1) / 2;
+		}
+
+		@Override
+		public int getCount() {
+			if (snapshot == null)
+				return 0;
+			return getBirthdayRows() + snapshot.events.size();
+		}
+
+		@Override
+		public RemoteViews getViewAt(final int position) {
+			final String packageName = context.getPackageName();
+			final boolean calendarColor = snapshot.info.calendarColor;
+			final int birthdayRows = getBirthdayRows();
+			final RemoteViews view;
+
+			if (position < birthdayRows) {
+				final List<Event> birthdays = snapshot.birthdays;
+				view = new RemoteViews(packageName, R.layout.birthdays_row);
+				view.setTextViewText(R.id.birthday1_text, formatter.format(
+						birthdays.get(2 * position), calendarColor));
+				if (2 * position + 1 < birthdays.size())
+					view.setTextViewText(R.id.birthday2_text, formatter
+							.format(birthdays.get(2 * position + 1), false));
+				else
+					view.setTextViewText(R.id.birthday2_text, "");
+			} else {
+				final Event event = snapshot.events.get(position
+						- birthdayRows);
+				view = new RemoteViews(packageName, R.layout.event_row);
+				view.setTextViewText(R.id.event_text,
+						formatter.format(event, calendarColor));
+				formatter.setCountdown(view, event, event == snapshot.next,
+						snapshot.now);
+				int alarmFlag = event.hasAlarm ? View.VISIBLE : View.GONE;
+				view.setViewVisibility(R.id.event_alarm, alarmFlag);
+			}
+			view.setOnClickFillInIntent(R.id.row, new Intent());
+			return view;
+		}
+
+		@Override
+		public RemoteViews getLoadingView() {
+			return null;
+		}
+
+		@Override
+		public int getViewTypeCount() {
+			return 2;
+		}
+
+		@Override
+		public long getItemId(final int position) {
+			return position;
+		}
+
+		@Override
+		public boolean hasStableIds() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         The events read for a widget during its last refresh, in cursor
+ *         order. Lines can be laid out again from it without querying the
+ *         calendar provider.
+ */
+final class EventModel {
+	public final WidgetInfo info;
+	public final TimeContext time;
+
+	/**
+	 * When the events were read
+	 */
+	public final long readAt;
+	public final List<Event> events;
+
+	/**
+	 * Whether the cursor had no further events
+	 */
+	public boolean exhausted = false;
+
+	/**
+	 * The window the next change probe has to cover
+	 */
+	public long probeStart;
+	public long probeEnd;
+
+	/**
+	 * Whether fingerprint was taken over the probe window before the events
+	 * were read
+	 */
+	public boolean probed = false;
+	public long fingerprint;
+
+	public EventModel(final WidgetInfo info, final TimeContext time,
+			final long readAt) {
+		this(info, time, readAt, new ArrayList<Event>());
+	}
+
+	private EventModel(final WidgetInfo info, final TimeContext time,
+			final long readAt, final List<Event> events) {
+		this.info = info;
+		this.time = time;
+		this.readAt = readAt;
+		this.events = events;
+	}
+
+	/**
+	 * @return the same events for another widget with an equal configuration
+	 */
+	public EventModel withInfo(final WidgetInfo info) {
+		final EventModel model = new EventModel(info, time, readAt, events);
+		model.exhausted = exhausted;
+		model.probeStart = probeStart;
+		model.probeEnd = probeEnd;
+		model.probed = probed;
+		model.fingerprint = fingerprint;
+		return model;
+	}
+
+	/**
+	 * @return the events moved to the time zone of the table. They are
+	 *         copied, the instance index and other widgets share them.
+	 */
+	public EventModel relocate(final DayTable days) {
+		final List<Event> relocated = new ArrayList<Event>(events.size());
+		for (Event event : events) {
+			final Event copy = event.copy();
+			copy.relocate(days);
+			relocated.add(copy);
+		}
+		final EventModel model = new EventModel(info, time, readAt, relocated);
+		model.exhausted = exhausted;
+		model.probeStart = probeStart;
+		model.probeEnd = probeEnd;
+		model.probed = probed;
+		model.fingerprint = fingerprint;
+		return model;
+	}
+
+	public WidgetLines fill(final TimeContext time, final long now,
+			final int maxLines) {
+		return fill(time, now, maxLines, 0);
+	}
+
+	/**
+	 * @return the lines of the page, each page continuing the agenda where
+	 *         the one before ended
+	 */
+	public WidgetLines fill(final TimeContext time, final long now,
+			final int maxLines, final int page) {
+		WidgetLines lines = fill(new WidgetLines(time, now, maxLines));
+		for (int i = 1; i <= page; i++)
+			lines = fill(new WidgetLines(time, now, maxLines, i, lines
+					.getAgendaEnd()));
+		lines.hasNextPage = hasPageAfter(lines);
+		return lines;
+	}
+
+	/**
+	 * @return whether the events read fill another page after the lines
+	 */
+	public boolean hasPageAfter(final WidgetLines lines) {
+		if (!covers(lines))
+			return false;
+		final WidgetLines next = fill(new WidgetLines(lines.time, lines.now,
+				lines.maxLines, lines.page + 1, lines.getAgendaEnd()));
+		return covers(next) && !next.agenda.isEmpty();
+	}
+
+	private WidgetLines fill(final WidgetLines lines) {
+		for (Event event : events) {
+			if (lines.isComplete())
+				break;
+			lines.add(event);
+		}
+		return lines;
+	}
+
+	/**
+	 * @return whether the lines hold everything they would after a full
+	 *         refresh
+	 */
+	public boolean covers(final WidgetLines lines) {
+		return exhausted || lines.isComplete();
+	}
+}
@@ -0,0 +1,1068 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Reads events from a local iCalendar file. The file is memory
+ *         mapped, and an index of where each VEVENT starts, sorted by start
+ *         time, is kept in the cache directory until the file changes. A
+ *         refresh then only parses the events it actually displays.
+ *         Recurring events are parsed once per index and expanded for the
+ *         window read only.
+ */
+final class IcsSource {
+	private static final String TAG = "AgendaWidget";
+
+	/**
+	 * Events from a file have no calendar to take the color from
+	 */
+	static final int COLOR = 0xff7f7f7f;
+
+	private static final int INDEX_VERSION = 2;
+	private static final String INDEX_DIRECTORY = "ics";
+
+	private static final long BUDGET = 256 * 1024;
+	private static final int SINGLE_SIZE = 20;
+	private static final int RECURRING_SIZE = 1024;
+
+	/**
+	 * The indexes of the files read so far, by path
+	 */
+	private static final Map<String, Index> indexes = new HashMap<String, Index>();
+
+	static {
+		Caches.register("ics indexes", Caches.PRIORITY_NORMAL, BUDGET,
+				new Caches.Cache() {
+					@Override
+					public long getSize() {
+						synchronized (indexes) {
+							long size = 0;
+							for (Index index : indexes.values())
+								size += index.starts.length * SINGLE_SIZE
+										+ index.recurring.length
+										* RECURRING_SIZE;
+							return size;
+						}
+					}
+
+					@Override
+					public void trim(final long bytes) {
+						synchronized (indexes) {
+							if (bytes < getSize())
+								indexes.clear();
+						}
+					}
+				});
+	}
+
+	/**
+	 * Where the VEVENTs of a file start. Single events are sorted by start,
+	 * recurring ones are kept apart as they have to be expanded, and so are
+	 * the ones overriding an occurrence of a recurring one.
+	 */
+	private static final class Index {
+		String path;
+		long modified;
+		long length;
+		String timezone;
+		long maxDuration;
+		long[] starts;
+		long[] ends;
+		int[] offsets;
+		int[] recurring;
+		int[] overrides;
+
+		/**
+		 * The valid recurring events and their rules, parsed on first use
+		 */
+		VEvent[] events;
+		Rule[] rules;
+
+		boolean isValid(final File file) {
+			return path.equals(file.getPath())
+					&& modified == file.lastModified()
+					&& length == file.length()
+					&& timezone.equals(Time.getCurrentTimezone());
+		}
+	}
+
+	/**
+	 * The properties of a VEVENT needed for display
+	 */
+	private static final class VEvent {
+		Time start;
+		Time end;
+		long duration = -1;
+		String summary;
+		String location;
+		String rrule;
+		String uid;
+		Time recurrenceId;
+		boolean hasAlarm;
+		boolean cancelled;
+		final List<Time> exdates = new ArrayList<Time>();
+
+		boolean isValid() {
+			return start != null && !cancelled;
+		}
+
+		int getDays() {
+			int days = 1;
+			if (end != null)
+				days = getJulianDay(end) - getJulianDay(start);
+			else if (duration > 0)
+				days = (int) (duration / DateUtils.DAY_IN_MILLIS);
+			return Math.max(days, 1);
+		}
+
+		long getLength() {
+			if (end != null)
+				return Math.max(end.toMillis(false) - start.toMillis(false), 0);
+			return Math.max(duration, 0);
+		}
+
+		/**
+		 * @return the occurrence starting on the given day, at the time of
+		 *         day of DTSTART
+		 */
+		Event toEvent(final int julianDay) {
+			final Event event = new Event();
+			event.allDay = start.allDay;
+			event.color = COLOR;
+			event.title = summary == null ? "" : summary;
+			event.location = location;
+			event.hasAlarm = hasAlarm;
+
+			if (event.allDay) {
+				event.startDay = julianDay;
+				event.endDay = julianDay + getDays() - 1;
+			} else {
+				event.startMillis = getMillis(julianDay);
+				event.endMillis = event.startMillis + getLength();
+			}
+			event.relocate(DayTable.get());
+			return event;
+		}
+
+		long getMillis(final int julianDay) {
+			final int[] date = DayTable.getDate(julianDay);
+			final Time time = new Time(start.timezone);
+			time.year = date[0];
+			time.month = date[1] - 1;
+			time.monthDay = date[2];
+			time.hour = start.hour;
+			time.minute = start.minute;
+			time.second = start.second;
+			return time.toMillis(false);
+		}
+
+		boolean isExcluded(final int julianDay) {
+			if (exdates.isEmpty())
+				return false;
+			final long millis = start.allDay ? 0 : getMillis(julianDay);
+			for (Time exdate : exdates)
+				if (exdate.allDay ? getJulianDay(exdate) == julianDay : exdate
+						.toMillis(false) == millis)
+					return true;
+			return false;
+		}
+	}
+
+	/**
+	 * Orders start, end and offset of the single events by start, longer
+	 * events first, like the instances cursor
+	 */
+	private static final Comparator<long[]> INDEX_ORDER = new Comparator<long[]>() {
+		@Override
+		public int compare(final long[] a, final long[] b) {
+			if (a[0] != b[0])
+				return a[0] < b[0] ? -1 : 1;
+			if (a[1] != b[1])
+				return a[1] > b[1] ? -1 : 1;
+			return 0;
+		}
+	};
+
+	private IcsSource() {
+	}
+
+	/**
+	 * @return the events of the file starting before end, in display order
+	 */
+	public static EventSource open(final Context context, final File file,
+			final TimeContext time, final long end) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		final ByteBuffer buffer;
+		try {
+			// the mapping stays valid once the file is closed
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+		final Index index = getIndex(context, file, buffer);
+
+		final List<EventSource> sources = new ArrayList<EventSource>();
+		sources.add(new SingleEvents(buffer, index, time, end));
+		synchronized (index) {
+			if (index.events == null)
+				parseRecurring(buffer, index);
+			for (int i = 0; i < index.events.length; i++)
+				sources.add(new Occurrences(index.events[i], index.rules[i],
+						time, end));
+		}
+		return MergedSource.merge(sources);
+	}
+
+	/**
+	 * Parses the recurring events of a file with their rules. The
+	 * occurrences overridden by another VEVENT with the same UID are
+	 * excluded, the override is indexed as a single event.
+	 */
+	private static void parseRecurring(final ByteBuffer buffer,
+			final Index index) {
+		final Map<String, List<Time>> overridden = new HashMap<String, List<Time>>();
+		for (int offset : index.overrides) {
+			final VEvent override = parse(buffer, offset);
+			List<Time> times = overridden.get(override.uid);
+			if (times == null) {
+				times = new ArrayList<Time>();
+				overridden.put(override.uid, times);
+			}
+			times.add(override.recurrenceId);
+		}
+
+		final List<VEvent> events = new ArrayList<VEvent>();
+		for (int offset : index.recurring) {
+			final VEvent event = parse(buffer, offset);
+			if (!event.isValid())
+				continue;
+			if (event.uid != null && overridden.containsKey(event.uid))
+				event.exdates.addAll(overridden.get(event.uid));
+			events.add(event);
+		}
+		index.events = events.toArray(new VEvent[events.size()]);
+		index.rules = new Rule[index.events.length];
+		for (int i = 0; i < index.events.length; i++)
+			index.rules[i] = Rule.parse(index.events[i]);
+	}
+
+	/**
+	 * The single events in the order of the index
+	 */
+	private static final class SingleEvents implements EventSource {
+		private final ByteBuffer buffer;
+		private final Index index;
+		private final TimeContext time;
+		private final long end;
+		private int position;
+
+		SingleEvents(final ByteBuffer buffer, final Index index,
+				final TimeContext time, final long end) {
+			this.buffer = buffer;
+			this.index = index;
+			this.time = time;
+			this.end = end;
+
+			// events started that long ago may still be going on
+			final long from = time.todayStart - index.maxDuration
+					- DateUtils.DAY_IN_MILLIS;
+			int low = 0;
+			int high = index.starts.length;
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (index.starts[middle] < from)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			position = low;
+		}
+
+		@Override
+		public Event next() {
+			final long now = System.currentTimeMillis();
+			for (; position < index.starts.length; position++) {
+				if (index.starts[position] > end)
+					break;
+				if (index.ends[position] < time.todayStart)
+					continue; // over already
+				final VEvent event = parse(buffer, index.offsets[position]);
+				final Event first = event.toEvent(getJulianDay(event.start));
+				if (!first.allDay && first.endMillis <= now)
+					continue;
+				position++;
+				return first;
+			}
+			return null;
+		}
+
+		@Override
+		public void close() {
+			position = index.starts.length;
+		}
+	}
+
+	/**
+	 * The occurrences of a recurring event, from the first one still going
+	 * on
+	 */
+	private static final class Occurrences implements EventSource {
+		private final VEvent event;
+		private final Rule rule;
+		private final TimeContext time;
+		private final int firstDay;
+		private final int lastDay;
+		private int period;
+		private int count = 0;
+		private int[] candidates = new int[0];
+		private int candidate = 0;
+		private boolean done = false;
+
+		Occurrences(final VEvent event, final Rule rule,
+				final TimeContext time, final long end) {
+			this.event = event;
+			this.rule = rule;
+			this.time = time;
+			firstDay = getJulianDay(event.start);
+			lastDay = DayTable.get().getJulianDay(end) + 1;
+			period = rule.getFirstPeriod(firstDay,
+					time.julianDay - event.getDays() - 1);
+		}
+
+		@Override
+		public Event next() {
+			final long now = System.currentTimeMillis();
+			while (!done) {
+				if (candidate >= candidates.length) {
+					if (rule.getPeriodStart(firstDay, period) > lastDay) {
+						done = true;
+						break;
+					}
+					candidates = rule.getCandidates(firstDay, period++);
+					candidate = 0;
+					continue;
+				}
+
+				final int day = candidates[candidate++];
+				if (day < firstDay)
+					continue;
+				if (rule.count >= 0 && count++ >= rule.count
+						|| rule.isAfterUntil(event, day) || day > lastDay) {
+					done = true;
+					break;
+				}
+				if (event.isExcluded(day))
+					continue;
+				final Event occurrence = event.toEvent(day);
+				if (occurrence.allDay ? occurrence.endMillis < time.todayStart
+						: occurrence.endMillis <= now)
+					continue; // over already
+				return occurrence;
+			}
+			return null;
+		}
+
+		@Override
+		public void close() {
+			done = true;
+		}
+	}
+
+	/**
+	 * The subset of RRULE that calendar feeds use: a frequency of days,
+	 * weeks, months or years with an interval, COUNT or UNTIL, and BYMONTH,
+	 * BYMONTHDAY and BYDAY (with ordinals in months). Rules using anything
+	 * else only yield their first occurrence.
+	 */
+	private static final class Rule {
+		static final int DAILY = 0;
+		static final int WEEKLY = 1;
+		static final int MONTHLY = 2;
+		static final int YEARLY = 3;
+		private static final String[] WEEKDAYS = { "SU", "MO", "TU", "WE",
+				"TH", "FR", "SA" };
+
+		int freq = DAILY;
+		int interval = 1;
+		int count = -1;
+		Time until;
+		int weekStart = 1;
+		int[] byMonth;
+		int[] byMonthDay;
+		int[] byDay;
+		int[] byDayOrdinal;
+
+		static Rule parse(final VEvent event) {
+			final Rule rule = new Rule();
+			try {
+				for (String part : event.rrule.toUpperCase().split(";")) {
+					final int equals = part.indexOf('=');
+					if (equals < 0)
+						continue;
+					final String name = part.substring(0, equals);
+					final String value = part.substring(equals + 1);
+					if ("FREQ".equals(name)) {
+						final int freq = Arrays.asList("DAILY", "WEEKLY",
+								"MONTHLY", "YEARLY").indexOf(value);
+						if (freq < 0)
+							return once();
+						rule.freq = freq;
+					} else if ("INTERVAL".equals(name))
+						rule.interval = Math.max(Integer.parseInt(value), 1);
+					else if ("COUNT".equals(name))
+						rule.count = Integer.parseInt(value);
+					else if ("UNTIL".equals(name))
+						rule.until = parseTime(value, null,
+								value.length() == 8);
+					else if ("WKST".equals(name))
+						rule.weekStart = Math.max(Arrays.asList(WEEKDAYS)
+								.indexOf(value), 0);
+					else if ("BYMONTH".equals(name))
+						rule.byMonth = parseNumbers(value);
+					else if ("BYMONTHDAY".equals(name))
+						rule.byMonthDay = parseNumbers(value);
+					else if ("BYDAY".equals(name)) {
+						final String[] days = value.split(",");
+						rule.byDay = new int[days.length];
+						rule.byDayOrdinal = new int[days.length];
+						for (int i = 0; i < days.length; i++) {
+							final String day = days[i].trim();
+							rule.byDay[i] = Arrays.asList(WEEKDAYS).indexOf(
+									day.substring(day.length() - 2));
+							if (rule.byDay[i] < 0)
+								return once();
+							if (day.length() > 2)
+								rule.byDayOrdinal[i] = Integer.parseInt(day
+										.substring(0, day.length() - 2)
+										.replace("+", ""));
+						}
+					} else if (!name.startsWith("X-"))
+						return once(); // BYSETPOS, BYWEEKNO and the like
+				}
+			} catch (RuntimeException e) {
+				Log.w(TAG, "Unsupported RRULE " + event.rrule, e);
+				return once();
+			}
+			if (rule.byDayOrdinal != null && rule.freq == YEARLY
+					&& rule.byMonth == null)
+				for (int ordinal : rule.byDayOrdinal)
+					if (ordinal != 0)
+						return once(); // nth weekday of the year
+			return rule;
+		}
+
+		private static Rule once() {
+			final Rule rule = new Rule();
+			rule.count = 1;
+			return rule;
+		}
+
+		private static int[] parseNumbers(final String value) {
+			final String[] parts = value.split(",");
+			final int[] numbers = new int[parts.length];
+			for (int i = 0; i < parts.length; i++)
+				numbers[i] = Integer.parseInt(parts[i].trim().replace("+", ""));
+			return numbers;
+		}
+
+		/**
+		 * @return the first period that may still hold an occurrence on or
+		 *         after the given day. Without a COUNT, earlier periods need
+		 *         not be generated.
+		 */
+		int getFirstPeriod(final int firstDay, final int from) {
+			if (count >= 0 || from <= firstDay)
+				return 0;
+			final int[] first = DayTable.getDate(firstDay);
+			final int[] target = DayTable.getDate(from);
+			final int periods;
+			switch (freq) {
+			case DAILY:
+				periods = from - firstDay;
+				break;
+			case WEEKLY:
+				periods = (from - firstDay) / 7;
+				break;
+			case MONTHLY:
+				periods = (target[0] - first[0]) * 12 + target[1] - first[1];
+				break;
+			default:
+				periods = target[0] - first[0];
+			}
+			return Math.max(periods / interval - 1, 0);
+		}
+
+		/**
+		 * @return the first day of the period
+		 */
+		int getPeriodStart(final int firstDay, final int period) {
+			final int[] first = DayTable.getDate(firstDay);
+			switch (freq) {
+			case DAILY:
+				return firstDay + period * interval;
+			case WEEKLY:
+				return firstDay
+						- (DayTable.getWeekDay(firstDay) - weekStart + 7) % 7
+						+ period * interval * 7;
+			case MONTHLY:
+				final int month = first[1] - 1 + period * interval;
+				return DayTable.getJulianDay(first[0] + month / 12,
+						month % 12 + 1, 1);
+			default:
+				return DayTable.getJulianDay(first[0] + period * interval, 1,
+						1);
+			}
+		}
+
+		/**
+		 * @return the days of the period the rule matches, in order
+		 */
+		int[] getCandidates(final int firstDay, final int period) {
+			final int start = getPeriodStart(firstDay, period);
+			final int[] first = DayTable.getDate(firstDay);
+			final List<Integer> days = new ArrayList<Integer>();
+			switch (freq) {
+			case DAILY:
+				if (matchesMonth(start) && matchesMonthDay(start)
+						&& matchesWeekDay(start))
+					days.add(start);
+				break;
+			case WEEKLY:
+				for (int i = 0; i < 7; i++)
+					if ((byDay == null ? DayTable.getWeekDay(start + i) == DayTable
+							.getWeekDay(firstDay) : matchesWeekDay(start + i))
+							&& matchesMonth(start + i))
+						days.add(start + i);
+				break;
+			case MONTHLY:
+				final int[] date = DayTable.getDate(start);
+				if (matchesMonth(start))
+					addMonth(days, date[0], date[1], first[2]);
+				break;
+			default:
+				final int year = DayTable.getDate(start)[0];
+				if (byMonth == null)
+					addMonth(days, year, first[1], first[2]);
+				else
+					for (int month = 1; month <= 12; month++)
+						if (matchesMonth(DayTable.getJulianDay(year, month, 1)))
+							addMonth(days, year, month, first[2]);
+			}
+
+			final int[] candidates = new int[days.size()];
+			for (int i = 0; i < candidates.length; i++)
+				candidates[i] = days.get(i);
+			Arrays.sort(candidates);
+			return candidates;
+		}
+
+		private void addMonth(final List<Integer> days, final int year,
+				final int month, final int firstMonthDay) {
+			final int monthStart = DayTable.getJulianDay(year, month, 1);
+			final int length = DayTable.getJulianDay(month == 12 ? year + 1
+					: year, month == 12 ? 1 : month + 1, 1)
+					- monthStart;
+
+			if (byMonthDay == null && byDay == null) {
+				if (firstMonthDay <= length)
+					days.add(monthStart + firstMonthDay - 1);
+				return;
+			}
+			for (int day = monthStart; day < monthStart + length; day++)
+				if (matchesMonthDay(day) && matchesDayInMonth(day, length))
+					days.add(day);
+		}
+
+		private boolean matchesMonth(final int day) {
+			if (byMonth == null)
+				return true;
+			final int month = DayTable.getDate(day)[1];
+			for (int value : byMonth)
+				if (value == month)
+					return true;
+			return false;
+		}
+
+		private boolean matchesMonthDay(final int day) {
+			if (byMonthDay == null)
+				return true;
+			final int[] date = DayTable.getDate(day);
+			final int length = DayTable.getJulianDay(date[1] == 12 ? date[0]
+					+ 1 : date[0], date[1] == 12 ? 1 : date[1] + 1, 1)
+					- DayTable.getJulianDay(date[0], date[1], 1);
+			for (int value : byMonthDay)
+				if (value == date[2] || value < 0
+						&& length + value + 1 == date[2])
+					return true;
+			return false;
+		}
+
+		private boolean matchesWeekDay(final int day) {
+			if (byDay == null)
+				return true;
+			for (int weekDay : byDay)
+				if (weekDay == DayTable.getWeekDay(day))
+					return true;
+			return false;
+		}
+
+		/**
+		 * BYDAY within a month, where 2SU is the second sunday and -1SU the
+		 * last one
+		 */
+		private boolean matchesDayInMonth(final int day, final int length) {
+			if (byDay == null)
+				return true;
+			final int monthDay = DayTable.getDate(day)[2];
+			for (int i = 0; i < byDay.length; i++) {
+				if (byDay[i] != DayTable.getWeekDay(day))
+					continue;
+				final int ordinal = byDayOrdinal[i];
+				if (ordinal == 0 || ordinal > 0
+						&& (monthDay - 1) / 7 + 1 == ordinal || ordinal < 0
+						&& (length - monthDay) / 7 + 1 == -ordinal)
+					return true;
+			}
+			return false;
+		}
+
+		boolean isAfterUntil(final VEvent event, final int day) {
+			if (until == null)
+				return false;
+			if (until.allDay || event.start.allDay)
+				return day > getJulianDay(until);
+			return event.getMillis(day) > until.toMillis(false);
+		}
+	}
+
+	private static Index getIndex(final Context context, final File file,
+			final ByteBuffer buffer) throws IOException {
+		final File directory = new File(context.getCacheDir(),
+				INDEX_DIRECTORY);
+		final File indexFile = new File(directory, Integer.toHexString(file
+				.getPath().hashCode())
+				+ ".idx");
+
+		synchronized (indexes) {
+			final Index index = indexes.get(file.getPath());
+			if (index != null && index.isValid(file))
+				return index;
+		}
+
+		Index index = null;
+		if (indexFile.exists()) {
+			try {
+				index = readIndex(indexFile);
+				if (!index.isValid(file))
+					index = null;
+			} catch (IOException e) {
+				Log.w(TAG, "Could not read " + indexFile, e);
+			}
+		}
+
+		if (index == null) {
+			Log.d(TAG, "Indexing " + file);
+			index = buildIndex(file, buffer);
+			directory.mkdirs();
+			writeIndex(indexFile, index);
+		}
+		synchronized (indexes) {
+			indexes.put(file.getPath(), index);
+		}
+		return index;
+	}
+
+	private static Index buildIndex(final File file, final ByteBuffer buffer) {
+		final List<long[]> single = new ArrayList<long[]>();
+		final List<Integer> recurring = new ArrayList<Integer>();
+		final List<Integer> overrides = new ArrayList<Integer>();
+		long maxDuration = 0;
+
+		final Lines lines = new Lines(buffer, 0);
+		while (true) {
+			final int offset = lines.position;
+			final String line = lines.next();
+			if (line == null)
+				break;
+			if (!"BEGIN:VEVENT".equalsIgnoreCase(line.trim()))
+				continue;
+
+			final VEvent event = parse(lines);
+			// cancelled overrides hide their occurrence as well
+			if (event.uid != null && event.recurrenceId != null)
+				overrides.add(offset);
+			if (!event.isValid())
+				continue;
+			if (event.rrule != null) {
+				recurring.add(offset);
+				continue;
+			}
+			final Event first = event.toEvent(getJulianDay(event.start));
+			single.add(new long[] { first.startMillis, first.endMillis, offset });
+			maxDuration = Math.max(maxDuration, first.endMillis
+					- first.startMillis);
+		}
+
+		Collections.sort(single, INDEX_ORDER);
+
+		final Index index = new Index();
+		index.path = file.getPath();
+		index.modified = file.lastModified();
+		index.length = file.length();
+		index.timezone = Time.getCurrentTimezone();
+		index.maxDuration = maxDuration;
+		index.starts = new long[single.size()];
+		index.ends = new long[single.size()];
+		index.offsets = new int[single.size()];
+		for (int i = 0; i < single.size(); i++) {
+			index.starts[i] = single.get(i)[0];
+			index.ends[i] = single.get(i)[1];
+			index.offsets[i] = (int) single.get(i)[2];
+		}
+		index.recurring = new int[recurring.size()];
+		for (int i = 0; i < recurring.size(); i++)
+			index.recurring[i] = recurring.get(i);
+		index.overrides = new int[overrides.size()];
+		for (int i = 0; i < overrides.size(); i++)
+			index.overrides[i] = overrides.get(i);
+		return index;
+	}
+
+	private static Index readIndex(final File indexFile) throws IOException {
+		final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if (in.readInt() != INDEX_VERSION)
+				throw new IOException("Outdated index");
+			final Index index = new Index();
+			index.path = in.readUTF();
+			index.modified = in.readLong();
+			index.length = in.readLong();
+			index.timezone = in.readUTF();
+			index.maxDuration = in.readLong();
+			final int count = in.readInt();
+			index.starts = new long[count];
+			index.ends = new long[count];
+			index.offsets = new int[count];
+			for (int i = 0; i < count; i++) {
+				index.starts[i] = in.readLong();
+				index.ends[i] = in.readLong();
+				index.offsets[i] = in.readInt();
+			}
+			index.recurring = new int[in.readInt()];
+			for (int i = 0; i < index.recurring.length; i++)
+				index.recurring[i] = in.readInt();
+			index.overrides = new int[in.readInt()];
+			for (int i = 0; i < index.overrides.length; i++)
+				index.overrides[i] = in.readInt();
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeIndex(final File indexFile, final Index index) {
+		// written aside and renamed, so a half written index is never read
+		final File temporary = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temporary)));
+			out.writeInt(INDEX_VERSION);
+			out.writeUTF(index.path);
+			out.writeLong(index.modified);
+			out.writeLong(index.length);
+			out.writeUTF(index.timezone);
+			out.writeLong(index.maxDuration);
+			out.writeInt(index.starts.length);
+			for (int i = 0; i < index.starts.length; i++) {
+				out.writeLong(index.starts[i]);
+				out.writeLong(index.ends[i]);
+				out.writeInt(index.offsets[i]);
+			}
+			out.writeInt(index.recurring.length);
+			for (int offset : index.recurring)
+				out.writeInt(offset);
+			out.writeInt(index.overrides.length);
+			for (int offset : index.overrides)
+				out.writeInt(offset);
+			out.close();
+			out = null;
+			if (!temporary.renameTo(indexFile))
+				Log.w(TAG, "Could not write " + indexFile);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write " + indexFile, e);
+		} finally {
+			if (out != null)
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+		}
+	}
+
+	/**
+	 * The content lines of a file, with folded lines joined
+	 */
+	private static final class Lines {
+		private final ByteBuffer buffer;
+		int position;
+
+		Lines(final ByteBuffer buffer, final int position) {
+			this.buffer = buffer;
+			this.position = position;
+		}
+
+		String next() {
+			final int limit = buffer.limit();
+			if (position >= limit)
+				return null;
+			final ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+			while (true) {
+				int end = position;
+				while (end < limit && buffer.get(end) != '\n')
+					end++;
+				final int next = end + 1;
+				if (end > position && buffer.get(end - 1) == '\r')
+					end--;
+				for (int i = position; i < end; i++)
+					line.write(buffer.get(i));
+				position = next;
+
+				// a line starting with a space or tab continues the last one
+				if (position < limit
+						&& (buffer.get(position) == ' ' || buffer
+								.get(position) == '\t'))
+					position++;
+				else
+					break;
+			}
+			try {
+				return line.toString("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				return line.toString();
+			}
+		}
+	}
+
+	private static VEvent parse(final ByteBuffer buffer, final int offset) {
+		final Lines lines = new Lines(buffer, offset);
+		lines.next(); // BEGIN:VEVENT
+		return parse(lines);
+	}
+
+	/**
+	 * Reads the properties of a VEVENT up to its END line. Nested
+	 * components like VALARM are skipped.
+	 */
+	private static VEvent parse(final Lines lines) {
+		final VEvent event = new VEvent();
+		int depth = 0;
+		String line;
+		while ((line = lines.next()) != null) {
+			final int colon = getValueStart(line);
+			if (colon < 0)
+				continue;
+			final String value = line.substring(colon + 1);
+			final int semicolon = line.indexOf(';');
+			final String name = line.substring(0,
+					semicolon >= 0 && semicolon < colon ? semicolon : colon)
+					.toUpperCase();
+			final String parameters = line.substring(name.length(), colon)
+					.toUpperCase();
+
+			if ("BEGIN".equals(name)) {
+				depth++;
+				if ("VALARM".equalsIgnoreCase(value.trim()))
+					event.hasAlarm = true;
+			} else if ("END".equals(name)) {
+				if (depth-- == 0)
+					break;
+			} else if (depth > 0)
+				continue;
+			else if ("DTSTART".equals(name))
+				event.start = parseTime(value, line.substring(name.length(),
+						colon), parameters.contains("VALUE=DATE")
+						&& !parameters.contains("VALUE=DATE-TIME"));
+			else if ("DTEND".equals(name))
+				event.end = parseTime(value, line.substring(name.length(),
+						colon), parameters.contains("VALUE=DATE")
+						&& !parameters.contains("VALUE=DATE-TIME"));
+			else if ("DURATION".equals(name))
+				event.duration = parseDuration(value.trim());
+			else if ("SUMMARY".equals(name))
+				event.summary = unescape(value);
+			else if ("LOCATION".equals(name)) {
+				event.location = unescape(value).trim();
+				if (event.location.length() == 0)
+					event.location = null;
+			} else if ("RRULE".equals(name))
+				event.rrule = value.trim();
+			else if ("UID".equals(name))
+				event.uid = value.trim();
+			else if ("RECURRENCE-ID".equals(name))
+				event.recurrenceId = parseTime(value, line.substring(name
+						.length(), colon), parameters.contains("VALUE=DATE")
+						&& !parameters.contains("VALUE=DATE-TIME"));
+			else if ("EXDATE".equals(name))
+				for (String exdate : value.split(",")) {
+					final Time time = parseTime(exdate, line.substring(name
+							.length(), colon), parameters
+							.contains("VALUE=DATE"));
+					if (time != null)
+						event.exdates.add(time);
+				}
+			else if ("STATUS".equals(name))
+				event.cancelled = "CANCELLED".equalsIgnoreCase(value.trim());
+		}
+		return event;
+	}
+
+	/**
+	 * @return the position of the colon ending the name and parameters,
+	 *         skipping quoted parameter values
+	 */
+	private static int getValueStart(final String line) {
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			final char c = line.charAt(i);
+			if (c == '"')
+				quoted = !quoted;
+			else if (c == ':' && !quoted)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param parameters
+	 *            the parameters of the property, for the TZID
+	 */
+	private static Time parseTime(String value, final String parameters,
+			final boolean isDate) {
+		value = value.trim();
+		String timezone = Time.getCurrentTimezone(); // floating time
+		if (isDate || value.length() == 8 || value.endsWith("Z"))
+			timezone = Time.TIMEZONE_UTC;
+		else if (parameters != null) {
+			final int tzid = parameters.toUpperCase().indexOf("TZID=");
+			if (tzid >= 0) {
+				int end = parameters.indexOf(';', tzid);
+				if (end < 0)
+					end = parameters.length();
+				timezone = parameters.substring(tzid + 5, end).replace("\"",
+						"");
+			}
+		}
+		try {
+			final Time time = new Time(timezone);
+			time.parse(value);
+			return time;
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Invalid date " + value, e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the duration in milliseconds, like P1D or PT1H30M
+	 */
+	private static long parseDuration(final String value) {
+		long duration = 0;
+		long number = 0;
+		boolean negative = false;
+		for (int i = 0; i < value.length(); i++) {
+			final char c = Character.toUpperCase(value.charAt(i));
+			if (c >= '0' && c <= '9')
+				number = number * 10 + c - '0';
+			else {
+				if (c == '-')
+					negative = true;
+				else if (c == 'W')
+					duration += number * DateUtils.WEEK_IN_MILLIS;
+				else if (c == 'D')
+					duration += number * DateUtils.DAY_IN_MILLIS;
+				else if (c == 'H')
+					duration += number * DateUtils.HOUR_IN_MILLIS;
+				else if (c == 'M')
+					duration += number * DateUtils.MINUTE_IN_MILLIS;
+				else if (c == 'S')
+					duration += number * DateUtils.SECOND_IN_MILLIS;
+				number = 0;
+			}
+		}
+		return negative ? -duration : duration;
+	}
+
+	private static String unescape(final String value) {
+		if (value.indexOf('\\') < 0)
+			return value;
+		final StringBuilder builder = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c != '\\' || i + 1 == value.length()) {
+				builder.append(c);
+				continue;
+			}
+			final char next = value.charAt(++i);
+			builder.append(next == 'n' || next == 'N' ? ' ' : next);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * @return the julian day of the date the time is on, in its own time
+	 *         zone
+	 */
+	private static int getJulianDay(final Time time) {
+		return DayTable.getJulianDay(time.year, time.month + 1, time.monthDay);
+	}
+}
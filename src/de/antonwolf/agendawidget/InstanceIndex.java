@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         The instances read from the calendar provider, shared by all
+ *         widgets of the process and kept apart per calendar. A widget reads
+ *         by merging the calendars it shows. Each calendar is only read as
+ *         far ahead as some widget needed so far, and once the provider
+ *         reports a change, only calendars whose events changed are read
+ *         again.
+ */
+final class InstanceIndex {
+	private static final String TAG = "AgendaWidget";
+
+	private final static String CURSOR_FORMAT = "content://com.android.calendar/instances/when/%1$d/%2$d";
+	private final static String CURSOR_SORT = "begin ASC, end DESC, title ASC";
+	private final static String FIRST_SELECTION_FORMAT = "calendar_id IN (%1$s)";
+	/**
+	 * The instances URI includes both ends of its window, so the instances
+	 * starting right at the end of a stretch were read with it already
+	 */
+	private final static String NEXT_SELECTION_FORMAT = "calendar_id IN (%1$s) AND begin > %2$d";
+	private final static int COL_TITLE = 0;
+	private final static int COL_COLOR = 1;
+	private final static int COL_LOCATION = 2;
+	private final static int COL_ALL_DAY = 3;
+	private final static int COL_START_DAY = 4;
+	private final static int COL_END_DAY = 5;
+	private final static int COL_END_MILLIS = 6;
+	private final static int COL_HAS_ALARM = 7;
+	private final static int COL_START_MILLIS = 8;
+	private final static int COL_CALENDAR_ID = 9;
+
+	private final static Pattern IS_EMPTY_PATTERN = Pattern.compile("^\\s*$");
+
+	/**
+	 * How far a calendar is read at first, each further read goes twice as
+	 * far as the one before
+	 */
+	private final static long FIRST_STEP = DateUtils.WEEK_IN_MILLIS;
+
+	/**
+	 * The instances of one calendar starting between start and readUntil,
+	 * plus the ones still going on at start, in cursor order
+	 */
+	private final static class Partition {
+		final int calendarId;
+		final long start;
+		long end;
+		final List<Event> events = new ArrayList<Event>();
+		long readUntil;
+		long step = FIRST_STEP;
+		long maxDuration = 0;
+
+		Partition(final int calendarId, final long start, final long end) {
+			this.calendarId = calendarId;
+			this.start = start;
+			this.end = end;
+			readUntil = start;
+		}
+
+		boolean isComplete() {
+			return readUntil >= end;
+		}
+	}
+
+	private final static SparseArray<Partition> partitions = new SparseArray<Partition>();
+	private final static long BUDGET = 1024 * 1024;
+
+	/**
+	 * Where all partitions start. Once the day moved on by a week, the
+	 * index starts over rather than holding on to old events.
+	 */
+	private static long start = 0;
+	private final static long MAX_START_DRIFT = DateUtils.WEEK_IN_MILLIS;
+
+	/**
+	 * How far the calendars are probed. Fixed while the index keeps its
+	 * start, so fingerprints stay comparable, and as far as any widget
+	 * reads meanwhile.
+	 */
+	private static long probeEnd = 0;
+	private static String timezone;
+
+	/**
+	 * Whether the provider reported a change since the calendars were last
+	 * probed. Set from the main thread, which must not wait for the lock on
+	 * the partitions.
+	 */
+	private static volatile boolean stale = false;
+	private static Map<Integer, Long> fingerprints;
+
+	static {
+		Caches.register("instances", Caches.PRIORITY_NORMAL, BUDGET,
+				new Caches.Cache() {
+					@Override
+					public long getSize() {
+						synchronized (partitions) {
+							long size = 0;
+							for (int i = 0; i < partitions.size(); i++)
+								size += Caches.sizeOf(partitions.valueAt(i).events);
+							return size;
+						}
+					}
+
+					@Override
+					public void trim(final long bytes) {
+						synchronized (partitions) {
+							while (partitions.size() > 0 && getSize() > bytes)
+								partitions.remove(partitions.keyAt(0));
+							if (partitions.size() == 0)
+								fingerprints = null;
+						}
+					}
+				});
+	}
+
+	private InstanceIndex() {
+	}
+
+	/**
+	 * Called when the provider reports a change. The next read probes which
+	 * calendars changed and drops those.
+	 */
+	public static void markStale() {
+		stale = true;
+	}
+
+	/**
+	 * @param cancellation
+	 *            aborts reading further from the provider
+	 * @return the instances of the calendars between start and end, in
+	 *         cursor order. Instances already over are included.
+	 */
+	public static EventSource getSource(final Context context,
+			final Collection<Integer> calendarIds, final long start,
+			final long end, final Cancellation cancellation) {
+		// the provider is queried without holding the lock, so trimming on
+		// the main thread never waits for it
+		final List<Integer> probed;
+		final long probeStart;
+		final long probeEnd;
+		synchronized (partitions) {
+			probed = getProbed(calendarIds, start, end);
+			probeStart = InstanceIndex.start;
+			probeEnd = InstanceIndex.probeEnd;
+		}
+		Map<Integer, Long> current = null;
+		if (probed != null) {
+			Stats.count(Stats.INDEX_PROBES);
+			try {
+				current = ChangeProbe.fingerprintCalendars(context, probed,
+						probeStart, probeEnd, cancellation);
+			} catch (final RuntimeException e) {
+				stale = true; // probe again on the next read
+				throw e;
+			}
+		}
+
+		synchronized (partitions) {
+			if (current != null && probeStart == InstanceIndex.start)
+				dropChanged(probed, current);
+
+			final List<Partition> group = new ArrayList<Partition>();
+			for (Integer calendarId : calendarIds) {
+				Partition partition = partitions.get(calendarId);
+				if (partition == null) {
+					partition = new Partition(calendarId,
+							InstanceIndex.start, end);
+					partitions.put(calendarId, partition);
+				}
+				partition.end = Math.max(partition.end, end);
+				group.add(partition);
+			}
+			final List<EventSource> sources = new ArrayList<EventSource>();
+			for (Partition partition : group)
+				sources.add(new PartitionSource(context, partition, group,
+						start, cancellation));
+			return MergedSource.merge(sources);
+		}
+	}
+
+	private static void clear() {
+		partitions.clear();
+		fingerprints = null;
+		stale = false;
+	}
+
+	/**
+	 * Drops everything if the time zone changed, as all-day events depend on
+	 * it, or if the day moved on too far
+	 * 
+	 * @return the calendars to probe for changes, or null if the
+	 *         fingerprints are current
+	 */
+	private static List<Integer> getProbed(
+			final Collection<Integer> calendarIds, final long start,
+			final long end) {
+		if (!Time.getCurrentTimezone().equals(timezone)) {
+			timezone = Time.getCurrentTimezone();
+			clear();
+		}
+		if (start < InstanceIndex.start
+				|| start > InstanceIndex.start + MAX_START_DRIFT
+				|| partitions.size() == 0) {
+			InstanceIndex.start = start;
+			probeEnd = end + MAX_START_DRIFT;
+			clear();
+		}
+		if (!stale && fingerprints != null
+				&& fingerprints.keySet().containsAll(calendarIds))
+			return null;
+
+		// a change reported while probing marks the index stale again
+		stale = false;
+		final List<Integer> probed = new ArrayList<Integer>(calendarIds);
+		for (int i = 0; i < partitions.size(); i++)
+			if (!probed.contains(partitions.keyAt(i)))
+				probed.add(partitions.keyAt(i));
+		return probed;
+	}
+
+	/**
+	 * Drops the calendars that changed since they were read
+	 */
+	private static void dropChanged(final List<Integer> probed,
+			final Map<Integer, Long> current) {
+		int dropped = 0;
+		for (Integer calendarId : probed) {
+			final Long before = fingerprints == null ? null : fingerprints
+					.get(calendarId);
+			if (before == null || !before.equals(current.get(calendarId))) {
+				if (partitions.get(calendarId) != null)
+					dropped++;
+				partitions.remove(calendarId);
+			}
+		}
+		Log.d(TAG, "Instance index: " + dropped + " of " + probed.size()
+				+ " calendars changed");
+		fingerprints = current;
+	}
+
+	/**
+	 * Reads the next stretch of several calendars from the provider in one
+	 * query. Called without the lock on the partitions, a cancelled read
+	 * adds nothing.
+	 * 
+	 * @param first
+	 *            whether the stretch is the first, which includes the
+	 *            instances still going on at its start
+	 * @return the instances of each calendar, in cursor order
+	 */
+	private static SparseArray<List<Event>> read(final Context context,
+			final List<Integer> calendarIds, final long from,
+			final long until, final boolean first,
+			final Cancellation cancellation) {
+		final String ids = TextUtils.join(",", calendarIds);
+		final String selection = first ? String.format(
+				FIRST_SELECTION_FORMAT, ids) : String.format(
+				NEXT_SELECTION_FORMAT, ids, from);
+
+		Stats.count(Stats.QUERIES);
+		final SparseArray<List<Event>> events = new SparseArray<List<Event>>();
+		for (Integer calendarId : calendarIds)
+			events.put(calendarId, new ArrayList<Event>());
+		Cursor cursor = null;
+		try {
+			cursor = cancellation.query(context.getContentResolver(), Uri
+					.parse(String.format(CURSOR_FORMAT, from, until)),
+					getProjection(), selection, null, CURSOR_SORT);
+			final DayTable days = DayTable.get();
+			while (cursor.moveToNext()) {
+				final List<Event> calendar = events.get(cursor
+						.getInt(COL_CALENDAR_ID));
+				if (calendar != null)
+					calendar.add(readInstance(cursor, days));
+			}
+		} finally {
+			if (cursor != null)
+				cursor.close();
+		}
+		return events;
+	}
+
+	/**
+	 * Hands out the events of a partition, reading further as needed. The
+	 * partitions of the same widget read as far are read along with it.
+	 */
+	private final static class PartitionSource implements EventSource {
+		private final Context context;
+		private final Partition partition;
+		private final List<Partition> group;
+		private final Cancellation cancellation;
+		private int position;
+
+		PartitionSource(final Context context, final Partition partition,
+				final List<Partition> group, final long start,
+				final Cancellation cancellation) {
+			this.context = context;
+			this.partition = partition;
+			this.group = group;
+			this.cancellation = cancellation;
+
+			// skip what ended before the window, events may go on for
+			// maxDuration
+			final long from = start - partition.maxDuration
+					- DateUtils.DAY_IN_MILLIS;
+			int low = 0;
+			int high = partition.events.size();
+			while (low < high) {
+				final int middle = (low + high) >>> 1;
+				if (partition.events.get(middle).startMillis < from)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			position = low;
+		}
+
+		@Override
+		public Event next() {
+			while (true) {
+				final long from;
+				final long until;
+				final long step;
+				final List<Partition> batch = new ArrayList<Partition>();
+				final List<Integer> calendarIds = new ArrayList<Integer>();
+				synchronized (partitions) {
+					if (position < partition.events.size())
+						return partition.events.get(position++);
+					if (partition.isComplete())
+						return null;
+					from = partition.readUntil;
+					step = partition.step;
+					until = Math.min(from + step, partition.end);
+					for (Partition other : group)
+						if (other.readUntil == from && !other.isComplete()) {
+							batch.add(other);
+							calendarIds.add(other.calendarId);
+						}
+				}
+
+				final SparseArray<List<Event>> events = read(context,
+						calendarIds, from, until, from == partition.start,
+						cancellation);
+				synchronized (partitions) {
+					for (Partition other : batch) {
+						// another widget may have read the stretch meanwhile
+						if (other.readUntil != from)
+							continue;
+						final List<Event> read = events.get(other.calendarId);
+						for (Event event : read)
+							other.maxDuration = Math.max(other.maxDuration,
+									event.endMillis - event.startMillis);
+						other.events.addAll(read);
+						other.readUntil = until;
+						other.step = step * 2;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			position = Integer.MAX_VALUE;
+		}
+	}
+
+	private static String[] getProjection() {
+		if (Build.VERSION.SDK_INT < 14)
+			return new String[] { "title", "color", "eventLocation", "allDay",
+					"startDay", "endDay", "end", "hasAlarm", "begin",
+					"calendar_id" };
+		return new String[] { "title", "calendar_color", "eventLocation",
+				"allDay", "startDay", "endDay", "end", "hasAlarm", "begin",
+				"calendar_id" };
+	}
+
+	/**
+	 * @return the instance as the provider has it, before any widget's
+	 *         settings are applied
+	 */
+	private static Event readInstance(final Cursor cursor,
+			final DayTable days) {
+		final Event event = new Event();
+		event.allDay = 1 == cursor.getInt(COL_ALL_DAY);
+		event.startDay = cursor.getInt(COL_START_DAY);
+		event.endDay = cursor.getInt(COL_END_DAY);
+		event.startMillis = cursor.getLong(COL_START_MILLIS);
+		event.endMillis = cursor.getLong(COL_END_MILLIS);
+		event.relocate(days);
+
+		event.title = cursor.getString(COL_TITLE);
+		if (event.title == null)
+			event.title = "";
+		event.location = cursor.getString(COL_LOCATION);
+		if (event.location != null
+				&& IS_EMPTY_PATTERN.matcher(event.location).find())
+			event.location = null;
+		event.color = cursor.getInt(COL_COLOR);
+		event.hasAlarm = cursor.getInt(COL_HAS_ALARM) == 1;
+		return event;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Merges several sources that are each in display order. Only the
+ *         next event of each source is held, and a source is closed as soon
+ *         as it runs out.
+ */
+final class MergedSource implements EventSource {
+	/**
+	 * The order of the instances cursor: by start, longer events first,
+	 * then by title
+	 */
+	static final Comparator<Event> ORDER = new Comparator<Event>() {
+		@Override
+		public int compare(final Event a, final Event b) {
+			if (a.startMillis != b.startMillis)
+				return a.startMillis < b.startMillis ? -1 : 1;
+			if (a.endMillis != b.endMillis)
+				return a.endMillis > b.endMillis ? -1 : 1;
+			return a.title.compareTo(b.title);
+		}
+	};
+
+	private final static class Head {
+		final EventSource source;
+		final int index;
+		Event event;
+
+		Head(final EventSource source, final int index) {
+			this.source = source;
+			this.index = index;
+		}
+	}
+
+	private final List<EventSource> sources;
+	private PriorityQueue<Head> heads;
+
+	private MergedSource(final List<EventSource> sources) {
+		this.sources = sources;
+	}
+
+	/**
+	 * A source without events, for widgets with nothing to read
+	 */
+	static final EventSource EMPTY = new EventSource() {
+		@Override
+		public Event next() {
+			return null;
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	/**
+	 * @return a source merging the given ones, or the only one
+	 */
+	public static EventSource merge(final List<EventSource> sources) {
+		if (sources.isEmpty())
+			return EMPTY;
+		if (sources.size() == 1)
+			return sources.get(0);
+		return new MergedSource(sources);
+	}
+
+	@Override
+	public Event next() {
+		if (heads == null) {
+			// sources are not read before the first event is asked for
+			heads = new PriorityQueue<Head>(Math.max(1, sources.size()),
+					new Comparator<Head>() {
+						@Override
+						public int compare(final Head a, final Head b) {
+							final int order = ORDER.compare(a.event, b.event);
+							// ties keep the order of the sources
+							return order != 0 ? order : a.index - b.index;
+						}
+					});
+			for (int i = 0; i < sources.size(); i++)
+				advance(new Head(sources.get(i), i));
+		}
+
+		final Head head = heads.poll();
+		if (head == null)
+			return null;
+		final Event event = head.event;
+		advance(head);
+		return event;
+	}
+
+	private void advance(final Head head) {
+		head.event = head.source.next();
+		if (head.event == null)
+			head.source.close();
+		else
+			heads.add(head);
+	}
+
+	@Override
+	public void close() {
+		if (heads == null) {
+			for (EventSource source : sources)
+				source.close();
+			return;
+		}
+		for (Head head : heads)
+			head.source.close();
+		heads.clear();
+	}
+}
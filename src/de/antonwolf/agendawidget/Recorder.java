@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Records the refreshes the widgets are asked for in debuggable
+ *         builds, and the events each refresh read, so a burst like an
+ *         account sync can be replayed later without the providers. Pull
+ *         files/recording.tsv from the device and run it through Replay.
+ *         Also measures how long refreshes take from being sent until they
+ *         are done.
+ */
+final class Recorder {
+	private static final String TAG = "AgendaWidget";
+
+	/**
+	 * One line per refresh: when it was sent, its action and the widget.
+	 * The reads of the refreshes are interleaved.
+	 */
+	private static final String RECORDING = "recording.tsv";
+	private static final long MAX_RECORDING = 256 * 1024;
+
+	private static final int MAX_LATENCIES = 1024;
+	private static final long[] latencies = new long[MAX_LATENCIES];
+	private static int latencyCount = 0;
+
+	private Recorder() {
+	}
+
+	/**
+	 * Appends the refresh to the recording. Has to be called off the main
+	 * thread.
+	 */
+	public static synchronized void record(final Context context,
+			final Intent intent) {
+		if (!Tracing.isEnabled())
+			return;
+
+		append(context, Recording.format(intent.getLongExtra(
+				WidgetService.EXTRA_SENT, System.currentTimeMillis()), intent
+				.getAction(), Integer.parseInt(intent.getData().getHost())));
+	}
+
+	/**
+	 * Appends the events the refresh read to the recording, so the refresh
+	 * can be replayed without the providers. Has to be called off the main
+	 * thread.
+	 */
+	public static synchronized void recordRead(final Context context,
+			final EventModel model, final int maxLines) {
+		if (Tracing.isEnabled())
+			append(context, Recording.format(model.info.widgetId, model,
+					maxLines, model.info.countdown));
+	}
+
+	private static void append(final Context context, final String lines) {
+		final File file = new File(context.getFilesDir(), RECORDING);
+		FileWriter writer = null;
+		try {
+			writer = new FileWriter(file, file.length() < MAX_RECORDING);
+			writer.write(lines);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not record " + lines, e);
+		} finally {
+			if (writer != null)
+				try {
+					writer.close();
+				} catch (IOException e) {
+				}
+		}
+	}
+
+	/**
+	 * Notes how long ago the refresh was sent
+	 */
+	public static synchronized void finished(final Intent intent) {
+		final long sent = intent.getLongExtra(WidgetService.EXTRA_SENT, -1);
+		if (!Tracing.isEnabled() || sent == -1)
+			return;
+		latencies[latencyCount % MAX_LATENCIES] = System.currentTimeMillis()
+				- sent;
+		latencyCount++;
+	}
+
+	/**
+	 * @return latency percentiles of the recent refreshes, for the log
+	 */
+	public static synchronized String report() {
+		final int count = Math.min(latencyCount, MAX_LATENCIES);
+		if (count == 0)
+			return "Latency: none";
+		final long[] sorted = new long[count];
+		System.arraycopy(latencies, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		return "Latency: n=" + count + " p50=" + sorted[count / 2] + "ms p90="
+				+ sorted[count * 9 / 10] + "ms p99=" + sorted[count * 99 / 100]
+				+ "ms max=" + sorted[count - 1] + "ms";
+	}
+}
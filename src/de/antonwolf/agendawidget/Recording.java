@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         The refreshes the Recorder wrote, and the events they read. A read
+ *         is replayed through a fake source, so it can be run again without
+ *         the providers it came from, see Replay.
+ */
+final class Recording {
+	private static final String READ = "read";
+	private static final String EVENT = "event";
+	private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+	private static final int EPOCH_JULIAN_DAY = 2440588;
+
+	/**
+	 * A refresh the service was asked for: when it was sent or due, its
+	 * action and the widget
+	 */
+	static final class Refresh {
+		final long sent;
+		final String action;
+		final int widgetId;
+
+		Refresh(final long sent, final String action, final int widgetId) {
+			this.sent = sent;
+			this.action = action;
+			this.widgetId = widgetId;
+		}
+	}
+
+	/**
+	 * The events one refresh read, in the order it read them
+	 */
+	static final class Read {
+		final long readAt;
+		final int widgetId;
+		final int julianDay;
+		final long todayStart;
+		final int maxLines;
+		final boolean countdown;
+		final boolean exhausted;
+		final List<Event> events = new ArrayList<Event>();
+
+		Read(final long readAt, final int widgetId, final int julianDay,
+				final long todayStart, final int maxLines,
+				final boolean countdown, final boolean exhausted) {
+			this.readAt = readAt;
+			this.widgetId = widgetId;
+			this.julianDay = julianDay;
+			this.todayStart = todayStart;
+			this.maxLines = maxLines;
+			this.countdown = countdown;
+			this.exhausted = exhausted;
+		}
+
+		/**
+		 * @return the day the refresh was on, in the offset from UTC it had
+		 *         then
+		 */
+		TimeContext getTime() {
+			final long offset = (julianDay - EPOCH_JULIAN_DAY) * DAY_IN_MILLIS
+					- todayStart;
+			return TimeContext.of(julianDay, DayTable
+					.withOffset(offset, julianDay));
+		}
+
+		/**
+		 * @return the events read, handing out copies
+		 */
+		EventSource open() {
+			return new EventSource() {
+				private int next = 0;
+
+				@Override
+				public Event next() {
+					return next < events.size() ? events.get(next++).copy()
+							: null;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+
+		/**
+		 * @return the model the refresh built, read again through the fake
+		 *         source
+		 */
+		EventModel replay() {
+			final EventModel model = new EventModel(null, getTime(), readAt);
+			final EventSource source = open();
+			try {
+				Event event;
+				while ((event = source.next()) != null)
+					model.events.add(event);
+			} finally {
+				source.close();
+			}
+			model.exhausted = exhausted;
+			return model;
+		}
+	}
+
+	final List<Refresh> refreshes = new ArrayList<Refresh>();
+	final List<Read> reads = new ArrayList<Read>();
+
+	private Recording() {
+	}
+
+	/**
+	 * @return the line to append to the recording for the refresh
+	 */
+	static String format(final long sent, final String action,
+			final int widgetId) {
+		return sent + "\t" + action + "\t" + widgetId + "\n";
+	}
+
+	/**
+	 * @return the lines to append to the recording for the model
+	 */
+	static String format(final int widgetId, final EventModel model,
+			final int maxLines, final boolean countdown) {
+		final StringBuilder lines = new StringBuilder();
+		lines.append(READ).append('\t').append(model.readAt).append('\t')
+				.append(widgetId).append('\t')
+				.append(model.time.julianDay).append('\t')
+				.append(model.time.todayStart).append('\t').append(maxLines)
+				.append('\t').append(countdown).append('\t')
+				.append(model.exhausted).append('\n');
+		for (Event event : model.events)
+			format(lines, event);
+		return lines.toString();
+	}
+
+	private static void format(final StringBuilder lines, final Event event) {
+		lines.append(EVENT).append('\t').append(event.allDay).append('\t')
+				.append(event.startMillis).append('\t')
+				.append(event.endMillis).append('\t').append(event.startDay)
+				.append('\t').append(event.endDay).append('\t')
+				.append(event.color).append('\t').append(event.hasAlarm)
+				.append('\t').append(event.isBirthday).append('\t');
+		escape(lines, event.title);
+		lines.append('\t');
+		escape(lines, event.location);
+		lines.append('\n');
+	}
+
+	private static void escape(final StringBuilder lines, final String text) {
+		if (text == null)
+			return;
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			if (c == '\\')
+				lines.append("\\\\");
+			else if (c == '\t')
+				lines.append("\\t");
+			else if (c == '\n')
+				lines.append("\\n");
+			else if (c == '\r')
+				lines.append("\\r");
+			else
+				lines.append(c);
+		}
+	}
+
+	private static String unescape(final String field) {
+		final StringBuilder text = new StringBuilder(field.length());
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c == '\\' && i + 1 < field.length()) {
+				c = field.charAt(++i);
+				if (c == 't')
+					c = '\t';
+				else if (c == 'n')
+					c = '\n';
+				else if (c == 'r')
+					c = '\r';
+			}
+			text.append(c);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return the refreshes and reads in the recording, skipping lines that
+	 *         cannot be parsed
+	 */
+	static Recording parse(final BufferedReader reader) throws IOException {
+		final Recording recording = new Recording();
+		Read read = null;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			final String[] fields = line.split("\t", -1);
+			try {
+				if (fields[0].equals(READ) && fields.length == 8) {
+					read = new Read(Long.parseLong(fields[1]), Integer
+							.parseInt(fields[2]), Integer.parseInt(fields[3]),
+							Long.parseLong(fields[4]), Integer
+									.parseInt(fields[5]), Boolean
+									.parseBoolean(fields[6]), Boolean
+									.parseBoolean(fields[7]));
+					recording.reads.add(read);
+				} else if (fields[0].equals(EVENT) && fields.length == 11
+						&& read != null)
+					read.events.add(parse(fields));
+				else if (fields.length == 3)
+					recording.refreshes.add(new Refresh(Long
+							.parseLong(fields[0]), fields[1], Integer
+							.parseInt(fields[2])));
+			} catch (NumberFormatException e) {
+				// a line cut off when the recording was full
+			}
+		}
+		return recording;
+	}
+
+	private static Event parse(final String[] fields) {
+		final Event event = new Event();
+		event.allDay = Boolean.parseBoolean(fields[1]);
+		event.startMillis = Long.parseLong(fields[2]);
+		event.endMillis = Long.parseLong(fields[3]);
+		event.startDay = Integer.parseInt(fields[4]);
+		event.endDay = Integer.parseInt(fields[5]);
+		event.color = Integer.parseInt(fields[6]);
+		event.hasAlarm = Boolean.parseBoolean(fields[7]);
+		event.isBirthday = Boolean.parseBoolean(fields[8]);
+		event.title = unescape(fields[9]);
+		event.location = fields[10].length() == 0 ? null
+				: unescape(fields[10]);
+		return event;
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Runs a recording through what the service does with each refresh,
+ *         with the events each refresh read standing in for the providers.
+ *         Reads are laid out and published, relayouts and the day alarms
+ *         act on the events read before, and the alarms come from
+ *         AlarmSchedule. Counts what that costs, so a burst recorded on a
+ *         device can be compared before and after a change.
+ */
+final class Replay {
+	/**
+	 * What the replay cost
+	 */
+	static final class Counts {
+		int refreshes = 0;
+		int queries = 0;
+		int renders = 0;
+		int alarms = 0;
+
+		@Override
+		public String toString() {
+			return "refreshes=" + refreshes + " queries=" + queries
+					+ " renders=" + renders + " alarms=" + alarms;
+		}
+	}
+
+	/**
+	 * What the service keeps of a widget between its refreshes
+	 */
+	private static final class Widget implements AlarmSchedule.Alarms {
+		private final Counts counts;
+		private EventModel model;
+		private int maxLines;
+		private boolean countdown;
+		private TimeContext time;
+		private WidgetLines nextDay;
+		private boolean prepared = false;
+
+		Widget(final Counts counts) {
+			this.counts = counts;
+		}
+
+		@Override
+		public void set(final String action, final long at) {
+			counts.alarms++;
+		}
+
+		@Override
+		public void cancel(final String action) {
+		}
+
+		void read(final Recording.Read read) {
+			counts.queries++;
+			model = read.replay();
+			maxLines = read.maxLines;
+			countdown = read.countdown;
+			time = model.time;
+			publish(read.readAt);
+		}
+
+		void refresh(final Recording.Refresh refresh) {
+			if (model == null)
+				return; // laid out once its read comes
+			final String action = refresh.action;
+			if (WidgetService.ACTION_UPDATE.equals(action)
+					|| WidgetService.ACTION_CHANGED.equals(action)
+					|| WidgetService.ACTION_PRESENT.equals(action))
+				return; // laid out by the read, if it queried
+			if (WidgetService.ACTION_PREPARE.equals(action)) {
+				if (nextDay != null && !prepared)
+					prepare();
+				return;
+			}
+
+			advance(refresh.sent);
+			if (WidgetService.ACTION_ROLLOVER.equals(action) && prepared
+					&& nextDay.time.julianDay == time.julianDay) {
+				AlarmSchedule.pushedNextDay(this, nextDay, countdown);
+				nextDay = null;
+				prepared = false;
+			} else
+				publish(refresh.sent);
+		}
+
+		private void advance(final long now) {
+			while (now >= time.tomorrowStart)
+				time = time.nextDay();
+		}
+
+		private void publish(final long now) {
+			advance(now);
+			final WidgetLines lines = model.fill(time, now, maxLines);
+			if (!model.covers(lines))
+				return; // the service queries, its read follows
+			counts.renders++;
+			final TimeContext tomorrow = time.nextDay();
+			final WidgetLines next = model.fill(tomorrow, tomorrow.todayStart,
+					maxLines);
+			nextDay = model.covers(next) ? next : null;
+			prepared = false;
+			if (AlarmSchedule.published(this, lines, nextDay != null,
+					countdown))
+				prepare();
+		}
+
+		private void prepare() {
+			counts.renders++;
+			prepared = true;
+			AlarmSchedule.prepared(this, nextDay);
+		}
+	}
+
+	private Replay() {
+	}
+
+	/**
+	 * Replays the refreshes and reads in the order they happened
+	 */
+	static Counts run(final Recording recording) {
+		final Counts counts = new Counts();
+		// no SparseArray, so the replay runs outside of Android
+		final Map<Integer, Widget> widgets = new HashMap<Integer, Widget>();
+		final List<Recording.Refresh> refreshes = recording.refreshes;
+		final List<Recording.Read> reads = recording.reads;
+
+		int refresh = 0;
+		int read = 0;
+		while (refresh < refreshes.size() || read < reads.size()) {
+			// a refresh is sent before it reads
+			final boolean isRead = refresh == refreshes.size()
+					|| (read < reads.size() && reads.get(read).readAt < refreshes
+							.get(refresh).sent);
+			final int widgetId = isRead ? reads.get(read).widgetId
+					: refreshes.get(refresh).widgetId;
+			Widget widget = widgets.get(widgetId);
+			if (widget == null) {
+				widget = new Widget(counts);
+				widgets.put(widgetId, widget);
+			}
+			if (isRead)
+				widget.read(reads.get(read++));
+			else {
+				counts.refreshes++;
+				widget.refresh(refreshes.get(refresh++));
+			}
+		}
+		return counts;
+	}
+}
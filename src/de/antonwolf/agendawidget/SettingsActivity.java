@@ -21,12 +21,21 @@
  */
 package de.antonwolf.agendawidget;
 
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import de.antonwolf.agendawidget.WidgetInfo.CalendarListener;
 import de.antonwolf.agendawidget.WidgetInfo.CalendarPreferences;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.CheckBoxPreference;
+import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceChangeListener;
@@ -50,16 +59,64 @@ public final class SettingsActivity extends PreferenceActivity {
 			WidgetInfo.DateFormat.SLASH_MONTH_DAY.toString(),
 			WidgetInfo.DateFormat.SLASH_YEAR_MONTH_DAY.toString() };
 
+	/**
+	 * Calendars are read in batches of this many, each batch is shown as
+	 * soon as it is read
+	 */
+	private static final int CALENDAR_BATCH = 25;
+
+	/**
+	 * The settings the widget is currently displayed with, except for the
+	 * calendars
+	 */
+	private WidgetInfo displayed;
+
+	/**
+	 * The calendars enabled now, and the ones the widget is displayed with
+	 */
+	private final Set<Integer> enabledCalendars = new TreeSet<Integer>();
+	private Set<Integer> displayedCalendars = new TreeSet<Integer>();
+
+	private final static class CalendarEntry {
+		final CheckBoxPreference preference;
+		final String name;
+		boolean listed = false;
+
+		CalendarEntry(final CheckBoxPreference preference, final String name) {
+			this.preference = preference;
+			this.name = name;
+		}
+	}
+
+	private final Handler handler = new Handler();
+	private final Cancellation loading = new Cancellation();
+	private final List<CalendarEntry> calendarEntries = new ArrayList<CalendarEntry>();
+	private PreferenceCategory calendars;
+	private EditTextPreference calendarFilter;
+	private String filter = "";
+	private boolean loaded = false;
+
 	@Override
 	protected void onCreate(final Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		Tracing.init(this);
 
 		final int widgetId = getIntent().getIntExtra(EXTRA_WIDGET_ID, -1);
 		Log.d(TAG, "SettingsActivity.onCreate(" + widgetId + ")");
 		if (-1 == widgetId)
 			return;
-		final WidgetInfo info = new WidgetInfo(widgetId, this);
+		Tracing.begin("config load");
+		final WidgetInfo info;
+		try {
+			// the calendars are read on a thread of their own
+			info = new WidgetInfo(widgetId, this, false);
+		} finally {
+			Tracing.end();
+		}
+		displayed = info;
 
+		getPreferenceManager().setSharedPreferencesName(
+				WidgetInfo.getPreferencesName(widgetId));
 		final PreferenceScreen screen = getPreferenceManager()
 				.createPreferenceScreen(this);
 		setPreferenceScreen(screen);
@@ -136,6 +193,15 @@ public final class SettingsActivity extends PreferenceActivity {
 		birthdays.setOnPreferenceChangeListener(birthdaysChanged);
 		display.addPreference(birthdays);
 
+		final CheckBoxPreference contactBirthdays = new CheckBoxPreference(
+				this);
+		contactBirthdays.setDefaultValue(info.contactBirthdaysDefault);
+		contactBirthdays.setKey(info.contactBirthdaysKey);
+		contactBirthdays.setTitle(R.string.settings_contact_birthdays);
+		contactBirthdays.setSummaryOn(R.string.settings_contact_birthdays_yes);
+		contactBirthdays.setSummaryOff(R.string.settings_contact_birthdays_no);
+		display.addPreference(contactBirthdays);
+
 		final CheckBoxPreference weekday = new CheckBoxPreference(this);
 		weekday.setDefaultValue(info.weekday);
 		weekday.setKey(info.weekdayKey);
@@ -214,31 +280,274 @@ public final class SettingsActivity extends PreferenceActivity {
 						System.currentTimeMillis()));
 		display.addPreference(twentyfourHours);
 
-		final PreferenceCategory calendars = new PreferenceCategory(this);
+		if (Build.VERSION.SDK_INT >= EventListService.MIN_SDK) {
+			final CheckBoxPreference scroll = new CheckBoxPreference(this);
+			scroll.setDefaultValue(info.scrollDefault);
+			scroll.setKey(info.scrollKey);
+			scroll.setTitle(R.string.settings_scroll);
+			scroll.setSummaryOn(R.string.settings_scroll_yes);
+			scroll.setSummaryOff(R.string.settings_scroll_no);
+			display.addPreference(scroll);
+		}
+
+		if (Build.VERSION.SDK_INT >= EventFormatter.COUNTDOWN_MIN_SDK) {
+			final CheckBoxPreference countdown = new CheckBoxPreference(this);
+			countdown.setDefaultValue(info.countdownDefault);
+			countdown.setKey(info.countdownKey);
+			countdown.setTitle(R.string.settings_countdown);
+			countdown.setSummaryOn(R.string.settings_countdown_yes);
+			countdown.setSummaryOff(R.string.settings_countdown_no);
+			display.addPreference(countdown);
+		}
+
+		calendars = new PreferenceCategory(this);
 		calendars.setTitle(R.string.settings_calendars);
 		screen.addPreference(calendars);
 
-		for (final Entry<Integer, CalendarPreferences> cinfo : info.calendars
-				.entrySet()) {
-			final CheckBoxPreference calendar = new CheckBoxPreference(this);
-			calendar.setDefaultValue(cinfo.getValue().enabledDefault);
-			calendar.setKey(cinfo.getValue().key);
-
-			final SpannableStringBuilder title = new SpannableStringBuilder(
-					"■ ");
-			title.setSpan(new ForegroundColorSpan(cinfo.getValue().color), 0,
-					1, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-			title.append(cinfo.getValue().displayName);
-			calendar.setTitle(title);
-
-			calendar.setSummaryOn(getResources().getString(
-					R.string.settings_calendars_show,
-					cinfo.getValue().displayName));
-			calendar.setSummaryOff(getResources().getString(
-					R.string.settings_calendars_hide,
-					cinfo.getValue().displayName));
-			calendars.addPreference(calendar);
+		final EditTextPreference icsFile = new EditTextPreference(this);
+		icsFile.setDefaultValue(info.icsFileDefault);
+		icsFile.setKey(info.icsFileKey);
+		icsFile.setTitle(R.string.settings_ics_file);
+		icsFile.setDialogTitle(getResources().getString(
+				R.string.settings_ics_file));
+		final OnPreferenceChangeListener icsFileChanged = new OnPreferenceChangeListener() {
+			@Override
+			public boolean onPreferenceChange(final Preference pref,
+					final Object newValue) {
+				final String path = ((String) newValue).trim();
+				if (path.length() == 0)
+					pref.setSummary(R.string.settings_ics_file_none);
+				else
+					pref.setSummary(getResources().getString(
+							R.string.settings_ics_file_summary, path));
+				return true;
+			}
+		};
+		icsFileChanged.onPreferenceChange(icsFile, info.icsFile);
+		icsFile.setOnPreferenceChangeListener(icsFileChanged);
+		calendars.addPreference(icsFile);
+
+		final EditTextPreference hideTitles = new EditTextPreference(this);
+		hideTitles.setDefaultValue(info.hideTitlesDefault);
+		hideTitles.setKey(info.hideTitlesKey);
+		hideTitles.setTitle(R.string.settings_hide_titles);
+		hideTitles.setDialogTitle(getResources().getString(
+				R.string.settings_hide_titles));
+		hideTitles.setDialogMessage(R.string.settings_titles_rules);
+		final OnPreferenceChangeListener hideTitlesChanged = new OnPreferenceChangeListener() {
+			@Override
+			public boolean onPreferenceChange(final Preference pref,
+					final Object newValue) {
+				final int rules = countRules((String) newValue);
+				if (rules == 0)
+					pref.setSummary(R.string.settings_hide_titles_none);
+				else
+					pref.setSummary(getResources().getString(
+							R.string.settings_hide_titles_summary, rules));
+				return true;
+			}
+		};
+		hideTitlesChanged.onPreferenceChange(hideTitles, info.hideTitles);
+		hideTitles.setOnPreferenceChangeListener(hideTitlesChanged);
+		calendars.addPreference(hideTitles);
+
+		final EditTextPreference showTitles = new EditTextPreference(this);
+		showTitles.setDefaultValue(info.showTitlesDefault);
+		showTitles.setKey(info.showTitlesKey);
+		showTitles.setTitle(R.string.settings_show_titles);
+		showTitles.setDialogTitle(getResources().getString(
+				R.string.settings_show_titles));
+		showTitles.setDialogMessage(R.string.settings_titles_rules);
+		final OnPreferenceChangeListener showTitlesChanged = new OnPreferenceChangeListener() {
+			@Override
+			public boolean onPreferenceChange(final Preference pref,
+					final Object newValue) {
+				final int rules = countRules((String) newValue);
+				if (rules == 0)
+					pref.setSummary(R.string.settings_show_titles_none);
+				else
+					pref.setSummary(getResources().getString(
+							R.string.settings_show_titles_summary, rules));
+				return true;
+			}
+		};
+		showTitlesChanged.onPreferenceChange(showTitles, info.showTitles);
+		showTitles.setOnPreferenceChangeListener(showTitlesChanged);
+		calendars.addPreference(showTitles);
+
+		calendarFilter = new EditTextPreference(this);
+		calendarFilter.setPersistent(false);
+		calendarFilter.setTitle(R.string.settings_calendars_filter);
+		calendarFilter.setDialogTitle(getResources().getString(
+				R.string.settings_calendars_filter));
+		calendarFilter.setEnabled(false);
+		calendarFilter
+				.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+					@Override
+					public boolean onPreferenceChange(final Preference pref,
+							final Object newValue) {
+						setFilter((String) newValue);
+						return true;
+					}
+				});
+		calendars.addPreference(calendarFilter);
+		updateFilterSummary();
+		loadCalendars(widgetId);
+	}
+
+	/**
+	 * Reads the calendars in the background, accounts with hundreds of
+	 * shared calendars take seconds to list
+	 */
+	private void loadCalendars(final int widgetId) {
+		final CalendarListener listener = new CalendarListener() {
+			@Override
+			public void onCalendars(final List<CalendarPreferences> batch) {
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						addCalendars(widgetId, batch);
+					}
+				});
+			}
+		};
+		new Thread("Calendar list of widget " + widgetId) {
+			@Override
+			public void run() {
+				try {
+					WidgetInfo.readCalendars(SettingsActivity.this, widgetId,
+							CALENDAR_BATCH, loading, listener);
+				} catch (final Cancellation.CancelledException e) {
+					return;
+				} catch (final RuntimeException e) {
+					Log.e(TAG, "Could not read the calendars", e);
+				}
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (loading.isCancelled())
+							return;
+						loaded = true;
+						calendarFilter.setEnabled(true);
+						updateFilterSummary();
+					}
+				});
+			}
+		}.start();
+	}
+
+	private void addCalendars(final int widgetId,
+			final List<CalendarPreferences> batch) {
+		if (loading.isCancelled())
+			return;
+		for (CalendarPreferences cinfo : batch) {
+			final CalendarEntry entry = new CalendarEntry(
+					createCalendarPreference(widgetId, cinfo),
+					cinfo.displayName == null ? "" : cinfo.displayName
+							.toLowerCase(Locale.getDefault()));
+			calendarEntries.add(entry);
+			// fixed, so calendars listed again go back to their place
+			entry.preference.setOrder(calendarFilter.getOrder()
+					+ calendarEntries.size());
+			if (cinfo.enabled) {
+				enabledCalendars.add(cinfo.calendarId);
+				displayedCalendars.add(cinfo.calendarId);
+			}
+			list(entry);
+		}
+		updateFilterSummary();
+	}
+
+	private CheckBoxPreference createCalendarPreference(final int widgetId,
+			final CalendarPreferences cinfo) {
+		final int calendarId = cinfo.calendarId;
+		final CheckBoxPreference calendar = new CheckBoxPreference(this);
+		// kept in the bit set of hidden calendars, not under its own key
+		calendar.setPersistent(false);
+		calendar.setChecked(cinfo.enabled);
+		calendar.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+			@Override
+			public boolean onPreferenceChange(final Preference pref,
+					final Object newValue) {
+				final boolean enabled = (Boolean) newValue;
+				WidgetInfo.setCalendarEnabled(SettingsActivity.this, widgetId,
+						calendarId, enabled);
+				if (enabled)
+					enabledCalendars.add(calendarId);
+				else
+					enabledCalendars.remove(calendarId);
+				return true;
+			}
+		});
+
+		final SpannableStringBuilder title = new SpannableStringBuilder("■ ");
+		title.setSpan(new ForegroundColorSpan(cinfo.color), 0, 1,
+				Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		title.append(cinfo.displayName);
+		calendar.setTitle(title);
+
+		calendar.setSummaryOn(getResources().getString(
+				R.string.settings_calendars_show, cinfo.displayName));
+		calendar.setSummaryOff(getResources().getString(
+				R.string.settings_calendars_hide, cinfo.displayName));
+		return calendar;
+	}
+
+	/**
+	 * Lists only the calendars whose names contain the filter
+	 */
+	private void setFilter(final String text) {
+		filter = text.trim().toLowerCase(Locale.getDefault());
+		for (CalendarEntry entry : calendarEntries)
+			list(entry);
+		updateFilterSummary();
+	}
+
+	/**
+	 * Adds the calendar to the list or removes it, as the filter requires
+	 */
+	private void list(final CalendarEntry entry) {
+		final boolean matches = entry.name.contains(filter);
+		if (matches == entry.listed)
+			return;
+		if (matches)
+			calendars.addPreference(entry.preference);
+		else
+			calendars.removePreference(entry.preference);
+		entry.listed = matches;
+	}
+
+	private void updateFilterSummary() {
+		if (!loaded) {
+			calendarFilter.setSummary(getResources().getString(
+					R.string.settings_calendars_loading,
+					calendarEntries.size()));
+			return;
+		}
+		if (filter.length() == 0) {
+			calendarFilter.setSummary(getResources().getString(
+					R.string.settings_calendars_filter_none,
+					calendarEntries.size()));
+			return;
 		}
+		int listed = 0;
+		for (CalendarEntry entry : calendarEntries)
+			if (entry.listed)
+				listed++;
+		calendarFilter.setSummary(getResources().getString(
+				R.string.settings_calendars_filter_summary, listed,
+				calendarEntries.size(), filter));
+	}
+
+	/**
+	 * @return the number of title rules, one per line
+	 */
+	private static int countRules(final String rules) {
+		int count = 0;
+		for (String rule : rules.split("\n"))
+			if (rule.trim().length() > 0)
+				count++;
+		return count;
 	}
 
 	@Override
@@ -255,12 +564,43 @@ public final class SettingsActivity extends PreferenceActivity {
 
 		int widgetId = getIntent().getIntExtra(EXTRA_WIDGET_ID, -1);
 		Log.d(TAG, "SettingsActivity.onPause(" + widgetId + ")");
-		if (-1 == widgetId)
+		if (-1 == widgetId || displayed == null)
 			return;
 
-		Intent intent = new Intent("update", Uri.parse("widget://" + widgetId),
+		final WidgetInfo changed = new WidgetInfo(widgetId, this, false);
+		WidgetInfo.Refresh refresh = changed.getRefresh(displayed);
+		if (!enabledCalendars.equals(displayedCalendars))
+			refresh = WidgetInfo.Refresh.QUERY;
+		final String action;
+		switch (refresh) {
+		case BACKGROUND:
+			action = WidgetService.ACTION_BACKGROUND;
+			break;
+		case FORMAT:
+			action = WidgetService.ACTION_FORMAT;
+			break;
+		case QUERY:
+			action = WidgetService.ACTION_UPDATE;
+			break;
+		default:
+			Log.d(TAG, "Settings unchanged");
+			return;
+		}
+		if (changed.contactBirthdays != displayed.contactBirthdays
+				|| !changed.birthdays.equals(displayed.birthdays))
+			WidgetBase.watchContacts(this);
+		displayed = changed;
+		displayedCalendars = new TreeSet<Integer>(enabledCalendars);
+
+		Intent intent = new Intent(action, Uri.parse("widget://" + widgetId),
 				this, WidgetService.class);
 		Log.d(TAG, "Sending " + intent);
 		startService(intent);
 	}
+
+	@Override
+	protected void onDestroy() {
+		loading.cancel();
+		super.onDestroy();
+	}
 }
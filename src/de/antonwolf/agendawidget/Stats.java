@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Counts how much work the widgets do, for the log
+ */
+final class Stats {
+	public static final String PROBES = "probes";
+	public static final String PROBE_HITS = "probe hits";
+	public static final String INDEX_PROBES = "index probes";
+	public static final String DEFERRED = "deferred";
+	public static final String RENDERS_AVOIDED = "renders avoided";
+	public static final String QUERIES = "queries";
+	public static final String RENDERS = "renders";
+	public static final String ALARMS = "alarms";
+	public static final String DEADLINE_MISSES = "deadline misses";
+	public static final String CANCELLED = "refreshes cancelled";
+
+	private static final Map<String, Integer> counters = new TreeMap<String, Integer>();
+
+	private Stats() {
+	}
+
+	public static synchronized void count(final String counter) {
+		counters.put(counter, get(counter) + 1);
+	}
+
+	public static synchronized int get(final String counter) {
+		final Integer value = counters.get(counter);
+		return value == null ? 0 : value;
+	}
+
+	public static synchronized void reset() {
+		counters.clear();
+	}
+
+	public static synchronized String dump() {
+		final StringBuilder builder = new StringBuilder("Stats:");
+		for (Entry<String, Integer> counter : counters.entrySet())
+			builder.append(' ').append(counter.getKey()).append('=')
+					.append(counter.getValue());
+		return builder.toString();
+	}
+}
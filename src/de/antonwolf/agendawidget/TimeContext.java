@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         The day boundaries a widget is laid out against
+ */
+final class TimeContext {
+	public final int julianDay;
+	public final long yesterdayStart;
+	public final long todayStart;
+	public final long tomorrowStart;
+	public final long dayAfterTomorrowStart;
+	public final long oneWeekFromNow;
+	public final long yearStart;
+	public final long yearEnd;
+	private final DayTable days;
+
+	private TimeContext(final int julianDay, final DayTable days) {
+		this.julianDay = julianDay;
+		this.days = days;
+
+		final int year = DayTable.getDate(julianDay)[0];
+		yearStart = days.getDayStart(DayTable.getJulianDay(year, 1, 1));
+		yearEnd = days.getDayStart(DayTable.getJulianDay(year + 1, 1, 1));
+		yesterdayStart = days.getDayStart(julianDay - 1);
+		todayStart = days.getDayStart(julianDay);
+		tomorrowStart = days.getDayStart(julianDay + 1);
+		dayAfterTomorrowStart = days.getDayStart(julianDay + 2);
+		oneWeekFromNow = days.getDayStart(julianDay + 8);
+	}
+
+	public TimeContext nextDay() {
+		return new TimeContext(julianDay + 1, days);
+	}
+
+	public static TimeContext now() {
+		final DayTable days = DayTable.get();
+		return new TimeContext(days.getJulianDay(System.currentTimeMillis()),
+				days);
+	}
+
+	/**
+	 * @return the day laid out against the given table, for simulations
+	 */
+	static TimeContext of(final int julianDay, final DayTable days) {
+		return new TimeContext(julianDay, days);
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import android.util.Log;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Hides events by their titles. Rules are given one per line, a rule
+ *         written as /.../ is a regular expression, any other rule a keyword
+ *         matched anywhere in the title, ignoring case. All keywords of a
+ *         widget are compiled into a single Aho-Corasick automaton, so a title
+ *         is scanned once no matter how many there are.
+ */
+final class TitleFilter {
+	private final static String TAG = "AgendaWidget";
+
+	/**
+	 * Output bits of the automaton
+	 */
+	private final static int HIDE = 1;
+	private final static int SHOW = 2;
+
+	private final static long BUDGET = 64 * 1024;
+	private final static int STATE_SIZE = 48;
+	private final static int PATTERN_SIZE = 512;
+
+	/**
+	 * The compiled filters by their rules, widgets with the same rules share
+	 * one
+	 */
+	private final static Map<String, TitleFilter> filters = new HashMap<String, TitleFilter>();
+
+	static {
+		Caches.register("title filters", Caches.PRIORITY_NORMAL, BUDGET,
+				new Caches.Cache() {
+					@Override
+					public long getSize() {
+						synchronized (filters) {
+							long size = 0;
+							for (TitleFilter filter : filters.values())
+								size += filter.getSize();
+							return size;
+						}
+					}
+
+					@Override
+					public void trim(final long bytes) {
+						synchronized (filters) {
+							if (bytes < getSize())
+								filters.clear();
+						}
+					}
+				});
+	}
+
+	/**
+	 * The characters each state has a transition for, ascending, and the
+	 * states they lead to. State 0 is the root.
+	 */
+	private final char[][] keys;
+	private final int[][] targets;
+	private final int[] failures;
+
+	/**
+	 * The kinds of keywords that end in each state, including the ones
+	 * reached through its failure links
+	 */
+	private final int[] outputs;
+
+	private final Pattern[] hidePatterns;
+	private final Pattern[] showPatterns;
+
+	/**
+	 * Whether only titles that match a rule to show are shown
+	 */
+	private final boolean showing;
+
+	private TitleFilter(final String hideRules, final String showRules) {
+		final List<TreeMap<Character, Integer>> children = new ArrayList<TreeMap<Character, Integer>>();
+		final List<Integer> kinds = new ArrayList<Integer>();
+		children.add(new TreeMap<Character, Integer>());
+		kinds.add(0);
+
+		final List<Pattern> hide = new ArrayList<Pattern>();
+		final List<Pattern> show = new ArrayList<Pattern>();
+		final int hideRuleCount = addRules(hideRules, HIDE, children, kinds,
+				hide);
+		final int showRuleCount = addRules(showRules, SHOW, children, kinds,
+				show);
+		hidePatterns = hide.toArray(new Pattern[hide.size()]);
+		showPatterns = show.toArray(new Pattern[show.size()]);
+		showing = showRuleCount > 0;
+		Log.d(TAG, "Compiled " + (hideRuleCount + showRuleCount)
+				+ " title rules into " + children.size() + " states and "
+				+ (hidePatterns.length + showPatterns.length) + " patterns");
+
+		final int count = children.size();
+		keys = new char[count][];
+		targets = new int[count][];
+		failures = new int[count];
+		outputs = new int[count];
+		for (int state = 0; state < count; state++) {
+			final TreeMap<Character, Integer> next = children.get(state);
+			keys[state] = new char[next.size()];
+			targets[state] = new int[next.size()];
+			int i = 0;
+			for (Map.Entry<Character, Integer> entry : next.entrySet()) {
+				keys[state][i] = entry.getKey();
+				targets[state][i] = entry.getValue();
+				i++;
+			}
+			outputs[state] = kinds.get(state);
+		}
+
+		// breadth first, so the failure of a state is known before its
+		// children are linked
+		final int[] queue = new int[count];
+		int head = 0;
+		int tail = 0;
+		for (int target : targets[0])
+			queue[tail++] = target;
+		while (head < tail) {
+			final int state = queue[head++];
+			for (int i = 0; i < keys[state].length; i++) {
+				final char key = keys[state][i];
+				final int target = targets[state][i];
+				int failure = failures[state];
+				int next;
+				while ((next = step(failure, key)) < 0 && failure != 0)
+					failure = failures[failure];
+				failures[target] = next < 0 ? 0 : next;
+				outputs[target] |= outputs[failures[target]];
+				queue[tail++] = target;
+			}
+		}
+	}
+
+	/**
+	 * Adds the keywords among the rules to the trie, and compiles the other
+	 * rules as patterns
+	 * 
+	 * @return the number of rules
+	 */
+	private static int addRules(final String rules, final int kind,
+			final List<TreeMap<Character, Integer>> children,
+			final List<Integer> kinds, final List<Pattern> patterns) {
+		int count = 0;
+		for (String rule : rules.split("\n")) {
+			rule = rule.trim();
+			if (rule.length() == 0)
+				continue;
+
+			if (rule.length() > 2 && rule.startsWith("/")
+					&& rule.endsWith("/")) {
+				try {
+					patterns.add(Pattern.compile(rule.substring(1,
+							rule.length() - 1), Pattern.CASE_INSENSITIVE
+							| Pattern.UNICODE_CASE));
+					count++;
+				} catch (final PatternSyntaxException e) {
+					Log.w(TAG, "Ignoring invalid title rule " + rule, e);
+				}
+				continue;
+			}
+
+			int state = 0;
+			for (int i = 0; i < rule.length(); i++) {
+				final Character key = fold(rule.charAt(i));
+				Integer next = children.get(state).get(key);
+				if (next == null) {
+					next = children.size();
+					children.add(new TreeMap<Character, Integer>());
+					kinds.add(0);
+					children.get(state).put(key, next);
+				}
+				state = next;
+			}
+			kinds.set(state, kinds.get(state) | kind);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the filter for the rules of the widget, or null if it has none
+	 */
+	public static TitleFilter get(final WidgetInfo info) {
+		if (info.hideTitles.length() == 0 && info.showTitles.length() == 0)
+			return null;
+
+		final String key = info.hideTitles + '\0' + info.showTitles;
+		synchronized (filters) {
+			TitleFilter filter = filters.get(key);
+			if (filter == null) {
+				Tracing.begin("title rules");
+				try {
+					filter = new TitleFilter(info.hideTitles, info.showTitles);
+				} finally {
+					Tracing.end();
+				}
+				filters.put(key, filter);
+			}
+			return filter;
+		}
+	}
+
+	/**
+	 * @return the events of the source whose titles pass the filter
+	 */
+	public static EventSource filter(final EventSource source,
+			final TitleFilter filter) {
+		if (filter == null)
+			return source;
+		return new EventSource() {
+			@Override
+			public Event next() {
+				Event event;
+				while ((event = source.next()) != null)
+					if (filter.isShown(event.title))
+						return event;
+				return null;
+			}
+
+			@Override
+			public void close() {
+				source.close();
+			}
+		};
+	}
+
+	public boolean isShown(final String title) {
+		final String text = title == null ? "" : title;
+		final int matched = scan(text);
+		if ((matched & HIDE) != 0)
+			return false;
+		for (Pattern pattern : hidePatterns)
+			if (pattern.matcher(text).find())
+				return false;
+
+		if (!showing || (matched & SHOW) != 0)
+			return true;
+		for (Pattern pattern : showPatterns)
+			if (pattern.matcher(text).find())
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return the kinds of keywords found in the text
+	 */
+	private int scan(final String text) {
+		int matched = 0;
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			final char key = fold(text.charAt(i));
+			int next;
+			while ((next = step(state, key)) < 0 && state != 0)
+				state = failures[state];
+			state = next < 0 ? 0 : next;
+			matched |= outputs[state];
+			if ((matched & HIDE) != 0)
+				break; // hidden either way
+		}
+		return matched;
+	}
+
+	/**
+	 * @return the state the character leads to, or -1 if there is no
+	 *         transition for it
+	 */
+	private int step(final int state, final char key) {
+		final int i = Arrays.binarySearch(keys[state], key);
+		return i < 0 ? -1 : targets[state][i];
+	}
+
+	private static char fold(final char c) {
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	private long getSize() {
+		long size = 0;
+		for (char[] next : keys)
+			size += STATE_SIZE + next.length * 6;
+		return size + (hidePatterns.length + showPatterns.length)
+				* PATTERN_SIZE;
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+import android.os.StrictMode;
+import android.os.Trace;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Helps finding out where the widget spends its time, in debuggable
+ *         builds only. Turns on StrictMode, so work on the main thread is
+ *         logged, and marks the stages of a refresh as trace sections that
+ *         show up in systrace.
+ */
+final class Tracing {
+	private static boolean initialized = false;
+	private static volatile boolean enabled = false;
+
+	private Tracing() {
+	}
+
+	/**
+	 * Has to be called on the main thread by every component before it
+	 * starts working
+	 */
+	public static synchronized void init(final Context context) {
+		if (initialized)
+			return;
+		initialized = true;
+		enabled = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+		if (enabled && Build.VERSION.SDK_INT >= 9)
+			enableStrictMode();
+	}
+
+	private static void enableStrictMode() {
+		StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+				.detectAll().penaltyLog().build());
+		StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder().detectAll()
+				.penaltyLog().build());
+	}
+
+	/**
+	 * @return whether this is a debuggable build
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Starts a trace section, which has to be ended on the same thread
+	 */
+	public static void begin(final String section) {
+		if (enabled && Build.VERSION.SDK_INT >= 18)
+			Trace.beginSection(section);
+	}
+
+	public static void end() {
+		if (enabled && Build.VERSION.SDK_INT >= 18)
+			Trace.endSection();
+	}
+}
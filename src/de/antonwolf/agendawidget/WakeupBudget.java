@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Plays the alarms a widget sets through the coming days on a
+ *         simulated clock, as AlarmSchedule decides them for the service.
+ *         WakeupBudgetTest holds synthetic agendas to the budget; debuggable
+ *         builds also run the events of each refresh through it and warn in
+ *         the log if they would wake up more often.
+ */
+final class WakeupBudget {
+	private static final String TAG = "AgendaWidget";
+
+	/**
+	 * How often a widget may wake the service per day, the day rollover
+	 * included
+	 */
+	static final int DAILY_BUDGET = 16;
+
+	/**
+	 * How many days are simulated
+	 */
+	static final int DAYS = 7;
+
+	/**
+	 * What one simulated day costs a single widget
+	 */
+	static final class Day {
+		int wakeups = 0;
+		int queries = 0;
+		int renders = 0;
+	}
+
+	private WakeupBudget() {
+	}
+
+	/**
+	 * Plays the alarms AlarmSchedule sets for a widget, starting with the
+	 * refresh that read the events of the model, and handles each the way
+	 * the service does. The simulation stops early once the events read no
+	 * longer fill the widget, as a real refresh would read further.
+	 * 
+	 * @return the days simulated, at most {@link #DAYS}. The refresh that
+	 *         starts the simulation is not counted.
+	 */
+	static List<Day> simulate(final EventModel model, final int maxLines,
+			final boolean countdown) {
+		return new Simulation(model, maxLines, countdown).run();
+	}
+
+	/**
+	 * The clock, the alarms set and what the service keeps of the widget
+	 */
+	private static final class Simulation implements AlarmSchedule.Alarms {
+		private final EventModel model;
+		private final int maxLines;
+		private final boolean countdown;
+		private final Map<String, Long> alarms = new HashMap<String, Long>();
+		private final List<Day> days = new ArrayList<Day>(DAYS);
+		private Day day = new Day();
+		private TimeContext time;
+
+		/**
+		 * The lines read ahead for the next day, and whether they were
+		 * rendered yet
+		 */
+		private WidgetLines nextDay;
+		private boolean prepared;
+
+		Simulation(final EventModel model, final int maxLines,
+				final boolean countdown) {
+			this.model = model;
+			this.maxLines = maxLines;
+			this.countdown = countdown;
+			time = model.time;
+		}
+
+		@Override
+		public void set(final String action, final long at) {
+			alarms.put(action, at);
+		}
+
+		@Override
+		public void cancel(final String action) {
+			alarms.remove(action);
+		}
+
+		List<Day> run() {
+			if (!publish(model.readAt))
+				return days;
+			while (!alarms.isEmpty()) {
+				String action = null;
+				long now = Long.MAX_VALUE;
+				for (Map.Entry<String, Long> alarm : alarms.entrySet())
+					if (alarm.getValue() < now) {
+						action = alarm.getKey();
+						now = alarm.getValue();
+					}
+				alarms.remove(action);
+				while (now >= time.tomorrowStart) {
+					days.add(day);
+					if (days.size() == DAYS)
+						return days;
+					day = new Day();
+					time = time.nextDay();
+				}
+
+				day.wakeups++;
+				if (WidgetService.ACTION_ROLLOVER.equals(action)) {
+					if (prepared && nextDay.time.julianDay == time.julianDay) {
+						// pushes the widget prepared
+						AlarmSchedule.pushedNextDay(this, nextDay, countdown);
+						nextDay = null;
+						prepared = false;
+						continue;
+					}
+					// lays out the events read before
+					day.renders++;
+					if (!publish(now))
+						return days;
+				} else if (WidgetService.ACTION_PREPARE.equals(action)
+						&& nextDay != null) {
+					prepare();
+				} else {
+					day.queries++;
+					day.renders++;
+					if (!publish(now))
+						return days;
+				}
+			}
+			return days;
+		}
+
+		/**
+		 * @return false if the events read do not fill the widget
+		 */
+		private boolean publish(final long now) {
+			final WidgetLines lines = model.fill(time, now, maxLines);
+			if (!model.covers(lines))
+				return false;
+			final TimeContext tomorrow = time.nextDay();
+			final WidgetLines next = model.fill(tomorrow, tomorrow.todayStart,
+					maxLines);
+			nextDay = model.covers(next) ? next : null;
+			prepared = false;
+			if (AlarmSchedule.published(this, lines, nextDay != null,
+					countdown))
+				prepare();
+			return true;
+		}
+
+		private void prepare() {
+			day.renders++;
+			prepared = true;
+			AlarmSchedule.prepared(this, nextDay);
+		}
+	}
+
+	/**
+	 * Simulates the widget of the model and logs what the days cost.
+	 * 
+	 * @param groupSize
+	 *            how many widgets share the render, each sets its own
+	 *            alarms but only one of them queries
+	 */
+	static void check(final EventModel model, final int maxLines,
+			final int groupSize) {
+		final StringBuilder report = new StringBuilder("Wakeups of widget ")
+				.append(model.info.widgetId).append(':');
+		boolean overBudget = false;
+
+		final List<Day> days = simulate(model, maxLines, model.info.countdown);
+		for (Day day : days) {
+			report.append(' ').append(day.wakeups * groupSize).append('/')
+					.append(day.queries).append('/').append(day.renders);
+			if (day.wakeups > DAILY_BUDGET)
+				overBudget = true;
+		}
+		if (days.size() < DAYS)
+			report.append(" (events read only cover ").append(days.size())
+					.append(" days)");
+
+		report.append(" wakeups/queries/renders per day");
+		if (overBudget)
+			Log.w(TAG, report.append(", over the budget of ")
+					.append(DAILY_BUDGET).toString());
+		else
+			Log.d(TAG, report.toString());
+	}
+}
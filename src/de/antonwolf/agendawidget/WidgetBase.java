@@ -22,16 +22,21 @@
 
 package de.antonwolf.agendawidget;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
+import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.database.ContentObserver;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.Handler;
+import android.provider.ContactsContract;
 import android.util.Log;
 
 /**
@@ -41,11 +46,26 @@ import android.util.Log;
  */
 abstract class WidgetBase extends AppWidgetProvider {
 	private ContentObserver calendarInstancesObserver;
+
+	/**
+	 * Shared by all sizes, registered only while a widget reads the
+	 * contacts. Only touched on the main thread.
+	 */
+	private static ContentObserver contactsObserver;
 	static final String TAG = "AgendaWidget";
 
 	@Override
 	public void onReceive(Context context, Intent intent) {
-		if (!intent.hasExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS)
+		Tracing.init(context);
+		final String action = intent.getAction();
+		if (Intent.ACTION_TIME_CHANGED.equals(action)
+				|| Intent.ACTION_TIMEZONE_CHANGED.equals(action))
+			sendToWidgets(context, WidgetService.ACTION_RELABEL);
+		else if (Intent.ACTION_DATE_CHANGED.equals(action))
+			sendToWidgets(context, WidgetService.ACTION_ROLLOVER);
+		else if (Intent.ACTION_USER_PRESENT.equals(action))
+			sendToWidgets(context, WidgetService.ACTION_PRESENT);
+		else if (!intent.hasExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS)
 				&& intent.getAction() == AppWidgetManager.ACTION_APPWIDGET_UPDATE) {
 			ComponentName name = new ComponentName(context, this.getClass());
 			AppWidgetManager m = AppWidgetManager.getInstance(context);
@@ -69,8 +89,22 @@ abstract class WidgetBase extends AppWidgetProvider {
 	
 	@Override
 	public void onDeleted(Context context, int[] appWidgetIds) {
-		for (final int widgetId : appWidgetIds)
+		for (final int widgetId : appWidgetIds) {
 			WidgetInfo.delete(context, widgetId);
+			WidgetService.forget(widgetId);
+		}
+		watchContacts(context);
+	}
+
+	@Override
+	public void onAppWidgetOptionsChanged(Context context,
+			AppWidgetManager manager, int appWidgetId, Bundle newOptions) {
+		Log.d(TAG, "WidgetBase.onAppWidgetOptionsChanged(" + appWidgetId
+				+ ")");
+		Intent intent = new Intent(WidgetService.ACTION_RESIZE, Uri
+				.parse("widget://" + appWidgetId), context, WidgetService.class);
+		Log.d(TAG, "Sending " + intent);
+		context.startService(intent);
 	}
 
 	@Override
@@ -81,8 +115,27 @@ abstract class WidgetBase extends AppWidgetProvider {
 		registerContentObserver(context);
 
 		for (int appWidgetId : ids) {
-			Intent intent = new Intent("update", Uri.parse("widget://"
+			Intent intent = new Intent(WidgetService.ACTION_UPDATE, Uri.parse("widget://"
+					+ appWidgetId), context, WidgetService.class);
+			intent.putExtra(WidgetService.EXTRA_SENT, System.currentTimeMillis());
+			Log.d(TAG, "Sending " + intent);
+			context.startService(intent);
+		}
+	}
+
+	/**
+	 * Sends an action other than a full update to all widgets of this size
+	 */
+	private void sendToWidgets(Context context, String action) {
+		ComponentName name = new ComponentName(context, this.getClass());
+		int[] ids = AppWidgetManager.getInstance(context).getAppWidgetIds(name);
+		Log.d(TAG, "WidgetBase.sendToWidgets(" + action + ", "
+				+ Arrays.toString(ids) + ")");
+
+		for (int appWidgetId : ids) {
+			Intent intent = new Intent(action, Uri.parse("widget://"
 					+ appWidgetId), context, WidgetService.class);
+			intent.putExtra(WidgetService.EXTRA_SENT, System.currentTimeMillis());
 			Log.d(TAG, "Sending " + intent);
 			context.startService(intent);
 		}
@@ -97,16 +150,17 @@ abstract class WidgetBase extends AppWidgetProvider {
 
 	private void registerContentObserver(final Context context) {
 		if (calendarInstancesObserver == null) {
-			final ComponentName name = new ComponentName(context,
-					this.getClass());
-
 			calendarInstancesObserver = new ContentObserver(new Handler()) {
 				@Override
 				public void onChange(boolean selfChange) {
 					Log.d(TAG, "ContentObserver.onChange()");
-					AppWidgetManager m = AppWidgetManager.getInstance(context);
-					int[] ids = m.getAppWidgetIds(name);
-					onUpdate(context, m, ids);
+					Tracing.begin("observer dispatch");
+					try {
+						InstanceIndex.markStale();
+						sendToWidgets(context, WidgetService.ACTION_CHANGED);
+					} finally {
+						Tracing.end();
+					}
 				}
 			};
 		}
@@ -115,5 +169,61 @@ abstract class WidgetBase extends AppWidgetProvider {
 		Uri instancesUri = Uri.parse(uriString);
 		context.getContentResolver().registerContentObserver(instancesUri,
 				true, calendarInstancesObserver);
+
+		watchContacts(context);
+	}
+
+	/**
+	 * Observes the contacts while any widget shows their birthdays, and
+	 * stops once none does. Has to be called on the main thread whenever
+	 * widgets or their birthday settings change.
+	 */
+	static void watchContacts(final Context context) {
+		final Context appContext = context.getApplicationContext();
+		final boolean reading = !getContactWidgets(appContext).isEmpty();
+		if (reading && contactsObserver == null) {
+			Log.d(TAG, "Observing the contacts");
+			contactsObserver = new ContentObserver(new Handler()) {
+				@Override
+				public void onChange(boolean selfChange) {
+					Log.d(TAG, "Contacts changed");
+					ContactBirthdays.markStale();
+					for (int widgetId : getContactWidgets(appContext)) {
+						Intent intent = new Intent(
+								WidgetService.ACTION_CHANGED, Uri
+										.parse("widget://" + widgetId),
+								appContext, WidgetService.class);
+						intent.putExtra(WidgetService.EXTRA_SENT, System
+								.currentTimeMillis());
+						appContext.startService(intent);
+					}
+				}
+			};
+			appContext.getContentResolver().registerContentObserver(
+					ContactsContract.AUTHORITY_URI, true, contactsObserver);
+		} else if (!reading && contactsObserver != null) {
+			Log.d(TAG, "No longer observing the contacts");
+			appContext.getContentResolver().unregisterContentObserver(
+					contactsObserver);
+			contactsObserver = null;
+		}
+	}
+
+	/**
+	 * @return the widgets of all sizes that show the birthdays of the
+	 *         contacts
+	 */
+	private static List<Integer> getContactWidgets(final Context context) {
+		final List<Integer> widgets = new ArrayList<Integer>();
+		final AppWidgetManager manager = AppWidgetManager.getInstance(context);
+		for (AppWidgetProviderInfo provider : manager.getInstalledProviders()) {
+			if (!context.getPackageName().equals(
+					provider.provider.getPackageName()))
+				continue;
+			for (int widgetId : manager.getAppWidgetIds(provider.provider))
+				if (WidgetInfo.isReadingContacts(context, widgetId))
+					widgets.add(widgetId);
+		}
+		return widgets;
 	}
 }
@@ -21,9 +21,16 @@
  */
 package de.antonwolf.agendawidget;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProviderInfo;
@@ -34,6 +41,7 @@ import android.content.res.Resources;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.util.DisplayMetrics;
 import android.view.WindowManager;
@@ -43,22 +51,27 @@ final class WidgetInfo {
 		public final int calendarId;
 		public final int color;
 		public final String displayName;
-		public final String key;
 
 		public final boolean enabledDefault = true;
 		public final boolean enabled;
 
-		private CalendarPreferences(SharedPreferences prefs, int widgetId,
-				int calendarId, String displayName, int color) {
+		private CalendarPreferences(String hiddenCalendars, int calendarId,
+				String displayName, int color) {
 			this.calendarId = calendarId;
 			this.color = color;
 			this.displayName = displayName;
 
-			key = String.format(CALENDARS_KEY, widgetId, calendarId);
-			enabled = prefs.getBoolean(key, enabledDefault);
+			enabled = !isHidden(hiddenCalendars, calendarId);
 		}
 	}
 
+	/**
+	 * Receives the calendars as they are read, on the reading thread
+	 */
+	public interface CalendarListener {
+		void onCalendars(List<CalendarPreferences> batch);
+	}
+
 	public enum DateFormat {
 		DOT_DAY_MONTH("%1$te.%1$tm", "%1$te.%1$tm.%1$ty"), SLASH_DAY_MONTH(
 				"%1$te/%1$tm", "%1$te/%1$tm/%1$ty"), SLASH_MONTH_DAY(
@@ -74,6 +87,14 @@ final class WidgetInfo {
 		}
 	}
 
+	/**
+	 * How much of a widget has to be redone after its settings changed, from
+	 * cheapest to most expensive
+	 */
+	public enum Refresh {
+		NONE, BACKGROUND, FORMAT, QUERY
+	}
+
 	public static final String BIRTHDAY_SPECIAL = "special";
 	public static final String BIRTHDAY_NORMAL = "normal";
 	public static final String BIRTHDAY_HIDE = "hidden";
@@ -83,64 +104,161 @@ final class WidgetInfo {
 	public final String birthdays;
 	public final String birthdaysDefault;
 	public final String birthdaysKey;
-	private static final String BIRTHDAYS_KEY = "%dbirthdays";
+	private static final String BIRTHDAYS_KEY = "birthdays";
+
+	/**
+	 * Whether birthdays are read from the contacts, instead of recognized
+	 * by the titles of all-day events
+	 */
+	public final boolean contactBirthdays;
+	public final boolean contactBirthdaysDefault = CONTACT_BIRTHDAYS_DEFAULT;
+	public final String contactBirthdaysKey;
+	private static final String CONTACT_BIRTHDAYS_KEY = "contactBirthdays";
+	private static final boolean CONTACT_BIRTHDAYS_DEFAULT = false;
 
 	public final String lines;
 	public final String linesDefault;
 	public final String linesKey;
-	private static final String LINES_KEY = "%dlines";
+	private static final String LINES_KEY = "lines";
+	private static final int MIN_LINES = 3;
+	private static final int MAX_LINES = 25;
 
 	public final String size;
 	public final String sizeDefault = "100";;
 	public final String sizeKey;
-	private static final String SIZE_KEY = "%dsize";
+	private static final String SIZE_KEY = "size";
 
 	public final float opacity;
 	public final float opacityDefault = 0.6f;
 	public final String opacityKey;
-	private static final String OPACITY_KEY = "%dopacityFloat";
-	
-	// DELETE SOMETIME
-	public final String oldOpacityDefault = "60";
-	private static final String OLD_OPACITY_KEY = "%dopacity";
+	private static final String OPACITY_KEY = "opacityFloat";
+
+	/**
+	 * Used before opacity was stored as a float, in percent
+	 */
+	private static final String OLD_OPACITY_KEY = "opacity";
 
 	public final boolean calendarColor;
 	public final boolean calendarColorDefault = true;
 	public final String calendarColorKey;
-	private static final String CALENDAR_COLOR_KEY = "%dcalendarColor";
+	private static final String CALENDAR_COLOR_KEY = "calendarColor";
 
 	public final boolean tomorrowYesterday;
 	public final boolean tomorrowYesterdayDefault = true;
 	public final String tomorrowYesterdayKey;
-	private static final String TOMORROW_YESTERDAY_KEY = "%dtommorowYesterday";
+	private static final String TOMORROW_YESTERDAY_KEY = "tommorowYesterday";
 
 	public final boolean weekday;
 	public final boolean weekdayDefault = true;
 	public final String weekdayKey;
-	private static final String WEEKDAY_KEY = "%dweekday";
+	private static final String WEEKDAY_KEY = "weekday";
 
 	public final boolean endTime;
 	public final boolean endTimeDefault;
 	public final String endTimeKey;
-	private static final String END_TIME_KEY = "%dendTime";
+	private static final String END_TIME_KEY = "endTime";
 
 	public final boolean twentyfourHours;
 	public final boolean twentyfourHoursDefault;
 	public final String twentyfourHoursKey;
-	private static final String TWENTYFOUR_HOURS_KEY = "%dtwentyfourHours";
+	private static final String TWENTYFOUR_HOURS_KEY = "twentyfourHours";
+
+	public final boolean scroll;
+	public final boolean scrollDefault = false;
+	public final String scrollKey;
+	private static final String SCROLL_KEY = "scroll";
+
+	/**
+	 * Whether the launcher counts down to the next event and to the end of
+	 * running ones
+	 */
+	public final boolean countdown;
+	public final boolean countdownDefault = false;
+	public final String countdownKey;
+	private static final String COUNTDOWN_KEY = "countdown";
+
+	/**
+	 * Path of a local iCalendar file to show along with the calendars, or
+	 * empty
+	 */
+	public final String icsFile;
+	public final String icsFileDefault = "";
+	public final String icsFileKey;
+	private static final String ICS_FILE_KEY = "icsFile";
+
+	/**
+	 * Rules for the titles of events to hide, and of the only ones to show
+	 * if there are any, one per line. See {@link TitleFilter}.
+	 */
+	public final String hideTitles;
+	public final String hideTitlesDefault = "";
+	public final String hideTitlesKey;
+	private static final String HIDE_TITLES_KEY = "hideTitles";
+
+	public final String showTitles;
+	public final String showTitlesDefault = "";
+	public final String showTitlesKey;
+	private static final String SHOW_TITLES_KEY = "showTitles";
 
 	public final DateFormat dateFormat;
 	public final DateFormat dateFormatDefault;
 	public final String dateFormatKey;
-	private static final String DATE_FORMAT_KEY = "%ddateFormat";
+	private static final String DATE_FORMAT_KEY = "dateFormat";
 
 	public final Map<Integer, CalendarPreferences> calendars;
-	private static final String CALENDARS_KEY = "%dcalendar%d";
+	private final String hiddenCalendars;
+	private static final String HIDDEN_CALENDARS_KEY = "hiddenCalendars";
+
+	/**
+	 * Each widget keeps its settings in its own small preferences file.
+	 * Before, they were kept in the default preferences, with the widget ID
+	 * as a prefix to each key and one key per calendar.
+	 */
+	private static final String PREFERENCES_NAME = "widget%d";
+	private static final String VERSION_KEY = "version";
+	private static final int VERSION = 1;
+	/**
+	 * Held while migrating, the service thread, refresh threads and the
+	 * settings may all read a widget's settings for the first time at once
+	 */
+	private static final Object MIGRATION_LOCK = new Object();
+	private static final String LEGACY_CALENDAR_KEY = "calendar";
+	private static final Pattern LEGACY_KEY_PATTERN = Pattern
+			.compile("^(\\d+)([a-zA-Z]+)(\\d*)$");
+
+	/**
+	 * Everything that affects the lines of the widget. Widgets with equal
+	 * keys display the same lines. The opacity is left out, as it is applied
+	 * to each widget separately. The calendars are in it as the ones hidden,
+	 * so it is known without querying them.
+	 */
+	public final String configKey;
 
 	public WidgetInfo(int widgetId, Context context) {
+		this(widgetId, context, true);
+	}
+
+	/**
+	 * @param withCalendars
+	 *            whether to query the calendars. Without them, the settings
+	 *            are read without a provider query, but only compare in
+	 *            everything else.
+	 */
+	public WidgetInfo(int widgetId, Context context, boolean withCalendars) {
+		this(widgetId, context, withCalendars ? null
+				: new HashMap<Integer, CalendarPreferences>());
+	}
+
+	/**
+	 * @param calendars
+	 *            the calendars as read for a widget with the same config
+	 *            key, or null to query them. They are only right for this
+	 *            widget if its key turns out the same.
+	 */
+	public WidgetInfo(int widgetId, Context context,
+			Map<Integer, CalendarPreferences> calendars) {
 		this.widgetId = widgetId;
-		final SharedPreferences prefs = PreferenceManager
-				.getDefaultSharedPreferences(context);
+		final SharedPreferences prefs = getPreferences(context, widgetId);
 		final AppWidgetManager manager = AppWidgetManager.getInstance(context);
 		final AppWidgetProviderInfo widgetInfo = manager
 				.getAppWidgetInfo(widgetId);
@@ -150,83 +268,155 @@ final class WidgetInfo {
 		final DisplayMetrics metrics = new DisplayMetrics();
 		winManager.getDefaultDisplay().getMetrics(metrics);
 
-		final int heightInCells = (int) (widgetInfo.minHeight / metrics.density + 2) / 74;
-		final int widthInCells = (int) (widgetInfo.minWidth / metrics.density + 2) / 74;
+		// resizable widgets report the size they actually have, in dp
+		float width = widgetInfo.minWidth / metrics.density;
+		float height = widgetInfo.minHeight / metrics.density;
+		if (Build.VERSION.SDK_INT >= 16) {
+			final Bundle options = manager.getAppWidgetOptions(widgetId);
+			if (options != null
+					&& options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_HEIGHT) > 0) {
+				width = options
+						.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH);
+				height = options
+						.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_HEIGHT);
+			}
+		}
+		final int widthInCells = (int) (width + 2) / 74;
 
 		final Resources res = context.getResources();
 
-		birthdaysKey = String.format(BIRTHDAYS_KEY, widgetId);
+		birthdaysKey = BIRTHDAYS_KEY;
 		birthdaysDefault = widthInCells > 2 ? BIRTHDAY_SPECIAL
 				: BIRTHDAY_NORMAL;
 		birthdays = prefs.getString(birthdaysKey, birthdaysDefault);
 
-		int linesInt = 5 + (int) ((heightInCells - 1) * 5.9);
+		contactBirthdaysKey = CONTACT_BIRTHDAYS_KEY;
+		contactBirthdays = prefs.getBoolean(contactBirthdaysKey,
+				contactBirthdaysDefault);
+
+		int linesInt = 5 + (int) ((height + 2 - 74) / 74 * 5.9);
+		linesInt = Math.max(MIN_LINES, Math.min(linesInt, MAX_LINES));
 		linesDefault = Integer.toString(linesInt);
-		linesKey = String.format(LINES_KEY, widgetId);
+		linesKey = LINES_KEY;
 		lines = prefs.getString(linesKey, linesDefault);
 
-		sizeKey = String.format(SIZE_KEY, widgetId);
+		sizeKey = SIZE_KEY;
 		size = prefs.getString(sizeKey, sizeDefault);
 
-		opacityKey = String.format(OPACITY_KEY, widgetId);
-        final String oldOpacityKey = String.format(OLD_OPACITY_KEY, widgetId);
-        opacity = prefs.getFloat(opacityKey, Float.parseFloat(prefs.getString(
-                        oldOpacityKey, oldOpacityDefault)) / 100f);
+		opacityKey = OPACITY_KEY;
+		opacity = prefs.getFloat(opacityKey, opacityDefault);
 
-		calendarColorKey = String.format(CALENDAR_COLOR_KEY, widgetId);
+		calendarColorKey = CALENDAR_COLOR_KEY;
 		calendarColor = prefs
 				.getBoolean(calendarColorKey, calendarColorDefault);
 
-		tomorrowYesterdayKey = String.format(TOMORROW_YESTERDAY_KEY, widgetId);
+		tomorrowYesterdayKey = TOMORROW_YESTERDAY_KEY;
 		tomorrowYesterday = prefs.getBoolean(tomorrowYesterdayKey,
 				tomorrowYesterdayDefault);
 
-		weekdayKey = String.format(WEEKDAY_KEY, widgetId);
+		weekdayKey = WEEKDAY_KEY;
 		weekday = prefs.getBoolean(weekdayKey, weekdayDefault);
 
-		endTimeKey = String.format(END_TIME_KEY, widgetId);
+		endTimeKey = END_TIME_KEY;
 		endTimeDefault = widthInCells > 2;
 		endTime = prefs.getBoolean(endTimeKey, endTimeDefault);
 
-		twentyfourHoursKey = String.format(TWENTYFOUR_HOURS_KEY, widgetId);
+		twentyfourHoursKey = TWENTYFOUR_HOURS_KEY;
 		twentyfourHoursDefault = res.getBoolean(R.bool.format_24hours);
 		twentyfourHours = prefs.getBoolean(twentyfourHoursKey,
 				twentyfourHoursDefault);
 
-		dateFormatKey = String.format(DATE_FORMAT_KEY, widgetId);
+		scrollKey = SCROLL_KEY;
+		scroll = prefs.getBoolean(scrollKey, scrollDefault);
+
+		countdownKey = COUNTDOWN_KEY;
+		countdown = prefs.getBoolean(countdownKey, countdownDefault);
+
+		icsFileKey = ICS_FILE_KEY;
+		icsFile = prefs.getString(icsFileKey, icsFileDefault).trim();
+
+		hideTitlesKey = HIDE_TITLES_KEY;
+		hideTitles = prefs.getString(hideTitlesKey, hideTitlesDefault).trim();
+
+		showTitlesKey = SHOW_TITLES_KEY;
+		showTitles = prefs.getString(showTitlesKey, showTitlesDefault).trim();
+
+		dateFormatKey = DATE_FORMAT_KEY;
 		dateFormatDefault = DateFormat.valueOf(res
 				.getString(R.string.format_date));
 		dateFormat = DateFormat.valueOf(prefs.getString(dateFormatKey,
 				dateFormatDefault.toString()));
 
-		calendars = getCalendars(context, widgetId);
+		hiddenCalendars = prefs.getString(HIDDEN_CALENDARS_KEY, "");
+		if (calendars == null)
+			this.calendars = getCalendars(context, hiddenCalendars);
+		else
+			this.calendars = calendars;
+
+		final StringBuilder key = new StringBuilder();
+		key.append(birthdays).append('|').append(contactBirthdays)
+				.append('|').append(lines).append('|')
+				.append(size).append('|').append(calendarColor).append('|')
+				.append(tomorrowYesterday).append('|').append(weekday)
+				.append('|').append(endTime).append('|')
+				.append(twentyfourHours).append('|').append(scroll)
+				.append('|').append(countdown)
+				.append('|').append(icsFile)
+				.append('|').append(hideTitles)
+				.append('|').append(showTitles)
+				.append('|').append(dateFormat)
+				.append('|').append(hiddenCalendars);
+		configKey = key.toString();
+	}
+
+	/**
+	 * Compares these settings to the ones the widget was displayed with
+	 */
+	public Refresh getRefresh(final WidgetInfo before) {
+		// these change which events are read
+		if (!birthdays.equals(before.birthdays)
+				|| contactBirthdays != before.contactBirthdays
+				|| !icsFile.equals(before.icsFile)
+				|| !hideTitles.equals(before.hideTitles)
+				|| !showTitles.equals(before.showTitles)
+				|| !getEnabledCalendars().equals(before.getEnabledCalendars()))
+			return Refresh.QUERY;
+
+		// these only change how the events are laid out
+		if (!lines.equals(before.lines) || !size.equals(before.size)
+				|| calendarColor != before.calendarColor
+				|| tomorrowYesterday != before.tomorrowYesterday
+				|| weekday != before.weekday || endTime != before.endTime
+				|| twentyfourHours != before.twentyfourHours
+				|| scroll != before.scroll || dateFormat != before.dateFormat
+				|| countdown != before.countdown)
+			return Refresh.FORMAT;
+
+		if (opacity != before.opacity)
+			return Refresh.BACKGROUND;
+		return Refresh.NONE;
+	}
+
+	public Set<Integer> getEnabledCalendars() {
+		final Set<Integer> enabled = new TreeSet<Integer>();
+		for (final Entry<Integer, CalendarPreferences> calendar : calendars
+				.entrySet())
+			if (calendar.getValue().enabled)
+				enabled.add(calendar.getKey());
+		return enabled;
 	}
 
 	private static Map<Integer, CalendarPreferences> getCalendars(
-			Context context, int widgetId) {
+			Context context, String hiddenCalendars) {
 		Cursor cursor = null;
-		final SharedPreferences prefs = PreferenceManager
-				.getDefaultSharedPreferences(context);
 		try {
-			if (Build.VERSION.SDK_INT < 14)
-				cursor = context.getContentResolver().query(
-						Uri.parse("content://com.android.calendar/calendars"),
-						new String[] { "_id", "displayName", "color" }, null, null,
-						"displayName ASC");
-			else
-				cursor = context.getContentResolver().query(
-						Uri.parse("content://com.android.calendar/calendars"),
-						new String[] { "_id", "calendar_displayName", "calendar_color" }, null, null,
-						"calendar_displayName ASC");
+			cursor = queryCalendars(context, null);
 			final Map<Integer, CalendarPreferences> calendars = new HashMap<Integer, CalendarPreferences>(
 					cursor.getCount());
 
 			while (cursor.moveToNext())
-				calendars.put(
-						cursor.getInt(0),
-						new CalendarPreferences(prefs, widgetId, cursor
-								.getInt(0), cursor.getString(1), cursor
-								.getInt(2)));
+				calendars.put(cursor.getInt(0),
+						readCalendar(cursor, hiddenCalendars));
 			return calendars;
 		} finally {
 			if (null != cursor)
@@ -234,24 +424,222 @@ final class WidgetInfo {
 		}
 	}
 
+	/**
+	 * Reads the calendars of a widget in batches, in the order they are
+	 * displayed in. The listener is called on the reading thread.
+	 * 
+	 * @throws Cancellation.CancelledException
+	 *             if reading was cancelled
+	 */
+	public static void readCalendars(Context context, int widgetId,
+			int batchSize, Cancellation cancellation, CalendarListener listener) {
+		final String hiddenCalendars = getPreferences(context, widgetId)
+				.getString(HIDDEN_CALENDARS_KEY, "");
+		Cursor cursor = null;
+		try {
+			cursor = queryCalendars(context, cancellation);
+			List<CalendarPreferences> batch = new ArrayList<CalendarPreferences>(
+					batchSize);
+			while (cursor.moveToNext()) {
+				batch.add(readCalendar(cursor, hiddenCalendars));
+				if (batch.size() < batchSize)
+					continue;
+				cancellation.check();
+				listener.onCalendars(batch);
+				batch = new ArrayList<CalendarPreferences>(batchSize);
+			}
+			cancellation.check();
+			if (!batch.isEmpty())
+				listener.onCalendars(batch);
+		} finally {
+			if (null != cursor)
+				cursor.close();
+		}
+	}
+
+	private static Cursor queryCalendars(Context context,
+			Cancellation cancellation) {
+		final Uri uri = Uri.parse("content://com.android.calendar/calendars");
+		final String[] projection;
+		final String sortOrder;
+		if (Build.VERSION.SDK_INT < 14) {
+			projection = new String[] { "_id", "displayName", "color" };
+			sortOrder = "displayName ASC";
+		} else {
+			projection = new String[] { "_id", "calendar_displayName",
+					"calendar_color" };
+			sortOrder = "calendar_displayName ASC";
+		}
+		if (cancellation == null)
+			return context.getContentResolver().query(uri, projection, null,
+					null, sortOrder);
+		return cancellation.query(context.getContentResolver(), uri,
+				projection, null, null, sortOrder);
+	}
+
+	private static CalendarPreferences readCalendar(Cursor cursor,
+			String hiddenCalendars) {
+		return new CalendarPreferences(hiddenCalendars, cursor.getInt(0),
+				cursor.getString(1), cursor.getInt(2));
+	}
+
+	public static String getPreferencesName(int widgetId) {
+		return String.format(PREFERENCES_NAME, widgetId);
+	}
+
+	private static SharedPreferences getPreferences(Context context,
+			int widgetId) {
+		final SharedPreferences prefs = context.getSharedPreferences(
+				getPreferencesName(widgetId), Context.MODE_PRIVATE);
+		if (prefs.getInt(VERSION_KEY, 0) < VERSION)
+			synchronized (MIGRATION_LOCK) {
+				if (prefs.getInt(VERSION_KEY, 0) < VERSION)
+					migrate(context, widgetId, prefs);
+			}
+		return prefs;
+	}
+
+	/**
+	 * Moves the settings of a widget out of the default preferences. The
+	 * settings of widgets removed before are dropped along the way, no
+	 * widget would ever move them.
+	 */
+	private static void migrate(Context context, int widgetId,
+			SharedPreferences prefs) {
+		final SharedPreferences legacy = PreferenceManager
+				.getDefaultSharedPreferences(context);
+		final Editor legacyEditor = legacy.edit();
+		final Editor editor = prefs.edit();
+		final String prefix = Integer.toString(widgetId);
+		String hiddenCalendars = prefs.getString(HIDDEN_CALENDARS_KEY, "");
+		final AppWidgetManager manager = AppWidgetManager.getInstance(context);
+		final Map<String, Boolean> removed = new HashMap<String, Boolean>();
+
+		for (final Entry<String, ?> entry : legacy.getAll().entrySet()) {
+			final Matcher matcher = LEGACY_KEY_PATTERN.matcher(entry.getKey());
+			if (!matcher.matches())
+				continue;
+			if (!matcher.group(1).equals(prefix)) {
+				Boolean isRemoved = removed.get(matcher.group(1));
+				if (isRemoved == null) {
+					isRemoved = isRemoved(manager, matcher.group(1));
+					removed.put(matcher.group(1), isRemoved);
+				}
+				if (isRemoved)
+					legacyEditor.remove(entry.getKey());
+				continue;
+			}
+			legacyEditor.remove(entry.getKey());
+
+			final String key = matcher.group(2);
+			final Object value = entry.getValue();
+			if (LEGACY_CALENDAR_KEY.equals(key)) {
+				if (Boolean.FALSE.equals(value))
+					hiddenCalendars = setHidden(hiddenCalendars,
+							Integer.parseInt(matcher.group(3)), true);
+			} else if (OLD_OPACITY_KEY.equals(key)) {
+				if (!legacy.contains(prefix + OPACITY_KEY))
+					editor.putFloat(OPACITY_KEY,
+							Float.parseFloat((String) value) / 100f);
+			} else if (value instanceof Boolean)
+				editor.putBoolean(key, (Boolean) value);
+			else if (value instanceof Float)
+				editor.putFloat(key, (Float) value);
+			else if (value instanceof String)
+				editor.putString(key, (String) value);
+		}
+
+		editor.putString(HIDDEN_CALENDARS_KEY, hiddenCalendars);
+		editor.putInt(VERSION_KEY, VERSION);
+		save(editor);
+		save(legacyEditor);
+	}
+
+	/**
+	 * @return whether the widget of a legacy key prefix no longer exists
+	 */
+	private static boolean isRemoved(final AppWidgetManager manager,
+			final String prefix) {
+		try {
+			return manager.getAppWidgetInfo(Integer.parseInt(prefix)) == null;
+		} catch (NumberFormatException e) {
+			return true; // too long to be a widget ID
+		}
+	}
+
+	private static void save(Editor editor) {
+		if (Build.VERSION.SDK_INT < 9)
+			editor.commit();
+		else
+			editor.apply();
+	}
+
+	/**
+	 * Hidden calendars are kept as a bit set of their IDs, written as hex
+	 * digits with the lowest bits first
+	 */
+	private static boolean isHidden(String hiddenCalendars, int calendarId) {
+		final int digit = calendarId / 4;
+		if (calendarId < 0 || digit >= hiddenCalendars.length())
+			return false;
+		final int bits = Character.digit(hiddenCalendars.charAt(digit), 16);
+		return (bits & (1 << (calendarId % 4))) != 0;
+	}
+
+	private static String setHidden(String hiddenCalendars, int calendarId,
+			boolean hidden) {
+		final StringBuilder builder = new StringBuilder(hiddenCalendars);
+		final int digit = calendarId / 4;
+		while (builder.length() <= digit)
+			builder.append('0');
+
+		int bits = Character.digit(builder.charAt(digit), 16);
+		if (hidden)
+			bits |= 1 << (calendarId % 4);
+		else
+			bits &= ~(1 << (calendarId % 4));
+		builder.setCharAt(digit, Character.forDigit(bits, 16));
+
+		int length = builder.length();
+		while (length > 0 && builder.charAt(length - 1) == '0')
+			length--;
+		builder.setLength(length);
+		return builder.toString();
+	}
+
+	public static void setCalendarEnabled(Context context, int widgetId,
+			int calendarId, boolean enabled) {
+		final SharedPreferences prefs = getPreferences(context, widgetId);
+		final String hiddenCalendars = setHidden(prefs.getString(
+				HIDDEN_CALENDARS_KEY, ""), calendarId, !enabled);
+		save(prefs.edit().putString(HIDDEN_CALENDARS_KEY, hiddenCalendars));
+	}
+
+	/**
+	 * @return whether the widget shows the birthdays of the contacts, without
+	 *         reading the rest of its settings
+	 */
+	static boolean isReadingContacts(final Context context, final int widgetId) {
+		final SharedPreferences prefs = getPreferences(context, widgetId);
+		return prefs.getBoolean(CONTACT_BIRTHDAYS_KEY, CONTACT_BIRTHDAYS_DEFAULT)
+				&& !BIRTHDAY_HIDE.equals(prefs.getString(BIRTHDAYS_KEY,
+						BIRTHDAY_NORMAL));
+	}
+
+	/**
+	 * Deletes the settings file of a removed widget. Before API 24 it is
+	 * cleared first, so no pending write brings it back.
+	 */
 	public static void delete(Context context, int widgetId) {
-		Editor editor = PreferenceManager.getDefaultSharedPreferences(context)
-				.edit();
-		editor.remove(String.format(BIRTHDAYS_KEY, widgetId));
-		editor.remove(String.format(LINES_KEY, widgetId));
-		editor.remove(String.format(SIZE_KEY, widgetId));
-		editor.remove(String.format(OPACITY_KEY, widgetId));
-		editor.remove(String.format(CALENDAR_COLOR_KEY, widgetId));
-		editor.remove(String.format(TOMORROW_YESTERDAY_KEY, widgetId));
-		editor.remove(String.format(WEEKDAY_KEY, widgetId));
-		editor.remove(String.format(END_TIME_KEY, widgetId));
-		editor.remove(String.format(TWENTYFOUR_HOURS_KEY, widgetId));
-		editor.remove(String.format(DATE_FORMAT_KEY, widgetId));
-		for (final Entry<Integer, CalendarPreferences> cinfo : getCalendars(
-				context, widgetId).entrySet()) {
-			editor.remove(cinfo.getValue().key);
+		final String name = getPreferencesName(widgetId);
+		if (Build.VERSION.SDK_INT >= 24) {
+			context.deleteSharedPreferences(name);
+			return;
 		}
-		editor.commit();
+		context.getSharedPreferences(name, Context.MODE_PRIVATE).edit()
+				.clear().commit();
+		new File(context.getApplicationInfo().dataDir, "shared_prefs/" + name
+				+ ".xml").delete();
 	}
 
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         The events that make up the lines of one widget, as seen at a
+ *         certain point in time. Events have to be added in cursor order.
+ */
+final class WidgetLines {
+	public final TimeContext time;
+	public final long now;
+	public final int maxLines;
+	public final List<Event> birthdays;
+	public final List<Event> agenda;
+
+	/**
+	 * The birthdays added so far, to drop the same birthday from another
+	 * source without scanning the list
+	 */
+	private final Set<Event> birthdayIndex = new HashSet<Event>();
+
+	/**
+	 * Which page of the agenda the lines are. Only the first page shows
+	 * birthdays.
+	 */
+	public final int page;
+
+	/**
+	 * Whether the events read go on after these lines
+	 */
+	public boolean hasNextPage = false;
+
+	/**
+	 * How many agenda events the pages before show, and how many of them
+	 * are still to be skipped
+	 */
+	private final int skipped;
+	private int skip;
+
+	/**
+	 * When the first event shown on a page before ends, as the pages shift
+	 * then
+	 */
+	private long skippedEnd = Long.MAX_VALUE;
+
+	public WidgetLines(final TimeContext time, final long now,
+			final int maxLines) {
+		this(time, now, maxLines, 0, 0);
+	}
+
+	public WidgetLines(final TimeContext time, final long now,
+			final int maxLines, final int page, final int skip) {
+		this.time = time;
+		this.now = now;
+		this.maxLines = maxLines;
+		this.page = page;
+		skipped = skip;
+		this.skip = skip;
+		birthdays = new ArrayList<Event>(page == 0 ? maxLines * 2 : 0);
+		agenda = new ArrayList<Event>(maxLines);
+	}
+
+	private boolean isFull() {
+		return Math.ceil(birthdays.size() / 2.0) + agenda.size() >= maxLines;
+	}
+
+	public boolean isComplete() {
+		return isFull() && birthdays.size() % 2 == 0;
+	}
+
+	private boolean isVisible(final Event event) {
+		if (event.allDay)
+			return event.endMillis >= time.todayStart;
+		return event.endMillis > now;
+	}
+
+	public void add(final Event event) {
+		if (isComplete() || !isVisible(event))
+			return;
+
+		if (event.isBirthday) {
+			if (page == 0 && birthdayIndex.add(event)) {
+				final int position = Collections.binarySearch(birthdays,
+						event, Event.BIRTHDAY_ORDER);
+				birthdays.add(position < 0 ? -position - 1 : position, event);
+			}
+		} else if (skip > 0) {
+			skip--;
+			if (!event.allDay)
+				skippedEnd = Math.min(skippedEnd, event.endMillis);
+		} else if (!isFull())
+			agenda.add(event);
+	}
+
+	/**
+	 * @return how many agenda events this page and the ones before show
+	 */
+	public int getAgendaEnd() {
+		return skipped + agenda.size();
+	}
+
+	/**
+	 * @return the first displayed event that starts later today, or null
+	 */
+	public Event getNextStart() {
+		for (Event event : agenda)
+			if (!event.allDay && event.startMillis > now
+					&& event.startMillis < time.tomorrowStart)
+				return event;
+		return null;
+	}
+
+	/**
+	 * @param countdown
+	 *            whether the start of the next event is counted down to, so
+	 *            the widget has to switch to its end then
+	 * @return when the first displayed event ends, or the start of the next
+	 *         day if that comes first
+	 */
+	public long getNextUpdate(final boolean countdown) {
+		long nextUpdate = Math.min(time.tomorrowStart, skippedEnd);
+		for (Event event : agenda)
+			if (!event.allDay && event.endMillis < nextUpdate)
+				nextUpdate = event.endMillis;
+		final Event next = countdown ? getNextStart() : null;
+		if (next != null && next.startMillis < nextUpdate)
+			nextUpdate = next.startMillis;
+		return nextUpdate;
+	}
+}
@@ -21,10 +21,13 @@
  */
 package de.antonwolf.agendawidget;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Formatter;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -33,93 +36,251 @@ import android.app.IntentService;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProviderInfo;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
+import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.Build;
-import android.text.Spannable;
-import android.text.SpannableStringBuilder;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.text.format.DateUtils;
-import android.text.format.Time;
-import android.text.style.ForegroundColorSpan;
-import android.text.style.RelativeSizeSpan;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.view.View;
 import android.widget.RemoteViews;
 
 public final class WidgetService extends IntentService {
-	private final static class Event {
-		public boolean allDay = false;
-		public int color;
-		public int endDay;
-		public long endMillis;
-		public Time endTime;
-		public boolean hasAlarm;
-		public boolean isBirthday = false;
-		public String location;
-		public long startMillis;
-		public Time startTime;
-		public int startDay;
-		public String title;
-
-		@Override
-		public boolean equals(Object o) {
-			if (!(o instanceof Event))
-				return false;
-
-			final Event other = (Event) o;
+	private static final String TAG = "AgendaWidget";
+	private static final String THEAD_NAME = "WidgetServiceThead";
 
-			return isBirthday && other.isBirthday
-					&& other.startDay == this.startDay
-					&& other.title.equals(this.title);
+	private static Pattern[] birthdayPatterns;
+	private final static Object birthdayPatternsLock = new Object();
+
+	static final String ACTION_UPDATE = "update";
+	static final String ACTION_PREPARE = "prepare";
+	static final String ACTION_ROLLOVER = "rollover";
+	static final String ACTION_RELABEL = "relabel";
+	static final String ACTION_CHANGED = "changed";
+	static final String ACTION_BACKGROUND = "background";
+	static final String ACTION_FORMAT = "format";
+	static final String ACTION_PRESENT = "present";
+	static final String ACTION_NEXT_PAGE = "next page";
+	static final String ACTION_PREVIOUS_PAGE = "previous page";
+	static final String ACTION_RESIZE = "resize";
+
+	/**
+	 * When an update was requested, or an alarm was due, so requests already
+	 * served can be dropped. The alarms of a group come due together, the
+	 * first one refreshes the whole group.
+	 */
+	static final String EXTRA_SENT = "sent";
+
+	/**
+	 * How late an update alarm may come, so the system can batch it with
+	 * other alarms. The day alarms stay exact.
+	 */
+	private final static long UPDATE_WINDOW = DateUtils.MINUTE_IN_MILLIS;
+
+	/**
+	 * What a widget will display once the next day starts
+	 */
+	private final static class NextDay {
+		final List<WidgetInfo> group;
+		final int layout;
+		final WidgetLines lines;
+		final boolean scroll;
+		SparseArray<RemoteViews> widgets;
+
+		NextDay(final List<WidgetInfo> group, final int layout,
+				final WidgetLines lines, final boolean scroll) {
+			this.group = group;
+			this.layout = layout;
+			this.lines = lines;
+			this.scroll = scroll;
 		}
 	}
 
-	private static final String TAG = "AgendaWidget";
-	private static final String THEAD_NAME = "WidgetServiceThead";
+	private final static SparseArray<NextDay> nextDays = new SparseArray<NextDay>();
+
+	/**
+	 * The page each widget was turned to, until its events are read again
+	 */
+	private final static SparseIntArray pages = new SparseIntArray();
+
+	/**
+	 * The latest refresh of each widget, a refresh started earlier for it is
+	 * cancelled
+	 */
+	private final static SparseArray<Refresh> refreshes = new SparseArray<Refresh>();
+	private static int generations = 0;
+
+	/**
+	 * Refreshes put off while the screen was off, by widget. Holds the
+	 * update action if any of them was one, as that cannot be probed away.
+	 */
+	private final static SparseArray<String> deferred = new SparseArray<String>();
+	private static BroadcastReceiver screenOnReceiver;
+	private final static SparseArray<EventModel> models = new SparseArray<EventModel>();
+	private final static long NEXT_DAYS_BUDGET = 256 * 1024;
+	private final static long MODELS_BUDGET = 512 * 1024;
+
+	static {
+		Caches.register("next days", Caches.PRIORITY_LOW, NEXT_DAYS_BUDGET,
+				new Caches.Cache() {
+					@Override
+					public long getSize() {
+						synchronized (nextDays) {
+							long size = 0;
+							for (int i = 0; i < nextDays.size(); i++)
+								size += getSize(nextDays.valueAt(i));
+							return size;
+						}
+					}
+
+					private long getSize(final NextDay day) {
+						long size = Caches.sizeOf(day.lines.birthdays)
+								+ Caches.sizeOf(day.lines.agenda);
+						if (day.widgets != null)
+							size += day.widgets.size()
+									* (day.lines.birthdays.size() / 2 + day.lines.agenda
+											.size()) * Caches.LINE_SIZE;
+						return size;
+					}
+
+					@Override
+					public void trim(final long bytes) {
+						synchronized (nextDays) {
+							while (nextDays.size() > 0 && getSize() > bytes)
+								nextDays.remove(nextDays.keyAt(0));
+						}
+					}
+				});
+		Caches.register("models", Caches.PRIORITY_NORMAL, MODELS_BUDGET,
+				new Caches.Cache() {
+					@Override
+					public long getSize() {
+						synchronized (models) {
+							// members of a group share their events
+							final Map<List<Event>, Boolean> counted = new IdentityHashMap<List<Event>, Boolean>();
+							long size = 0;
+							for (int i = 0; i < models.size(); i++) {
+								final List<Event> events = models.valueAt(i).events;
+								if (counted.put(events, Boolean.TRUE) == null)
+									size += Caches.sizeOf(events);
+							}
+							return size;
+						}
+					}
+
+					@Override
+					public void trim(final long bytes) {
+						synchronized (models) {
+							while (models.size() > 0 && getSize() > bytes)
+								models.remove(models.keyAt(0));
+						}
+					}
+				});
+	}
 
-	private static long yesterdayStart;
-	private static long todayStart;
-	private static long tomorrowStart;
-	private static long dayAfterTomorrowStart;
-	private static long oneWeekFromNow;
-	private static long yearStart;
-	private static long yearEnd;
+	private final static long SEARCH_DURATION = 2 * DateUtils.YEAR_IN_MILLIS;
 
-	private static Pattern[] birthdayPatterns;
+	/**
+	 * How long a refresh may take before what the widget displayed last, or
+	 * what was read so far, is pushed instead
+	 */
+	private final static long DEADLINE = 1500;
+
+	/**
+	 * How many lines a scrollable widget reads ahead
+	 */
+	private final static int SCROLL_MAX_LINES = 500;
+
+	/**
+	 * How many pages after the first a widget reads ahead, so they can be
+	 * turned to without a query
+	 */
+	private final static int PAGES_AHEAD = 3;
 
-	private final static String CURSOR_FORMAT = "content://com.android.calendar/instances/when/%1$s/%2$s";
-	private final static long SEARCH_DURATION = 2 * DateUtils.YEAR_IN_MILLIS;
-	private final static String CURSOR_SORT = "begin ASC, end DESC, title ASC";
-	private final static int COL_TITLE = 0;
-	private final static int COL_COLOR = 1;
-	private final static int COL_LOCATION = 2;
-	private final static int COL_ALL_DAY = 3;
-	private final static int COL_START_DAY = 4;
-	private final static int COL_END_DAY = 5;
-	private final static int COL_END_MILLIS = 6;
-	private final static int COL_HAS_ALARM = 7;
-	private final static int COL_CALENDAR = 8;
-	private final static int COL_START_MILLIS = 9;
-
-	private final static String COLOR_DOT = "■\t";
-	private final static String COLOR_HIDDEN = "\t";
-	private final static String SEPARATOR_COMMA = ", ";
-
-	private final static long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
-
-	private final static Pattern IS_EMPTY_PATTERN = Pattern.compile("^\\s*$");
-	private final static int DATETIME_COLOR = 0xb8ffffff;
 
 	public WidgetService() {
 		super(THEAD_NAME);
 	}
 
 	@Override
-	protected synchronized void onHandleIntent(final Intent intent) {
+	public void onCreate() {
+		super.onCreate();
+		Tracing.init(this);
+	}
+
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+		Caches.trimToBudgets();
+		Log.d(TAG, Caches.dump());
+		if (Tracing.isEnabled())
+			Log.d(TAG, Recorder.report() + ", " + Stats.dump());
+	}
+
+	@Override
+	public void onTrimMemory(final int level) {
+		super.onTrimMemory(level);
+		Log.d(TAG, "WidgetService.onTrimMemory(" + level + ")");
+		Caches.onTrimMemory(level);
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		Caches.onLowMemory();
+	}
+
+	/**
+	 * Drops everything kept in memory for a deleted widget
+	 */
+	static void forget(final int widgetId) {
+		synchronized (models) {
+			models.remove(widgetId);
+		}
+		synchronized (nextDays) {
+			nextDays.remove(widgetId);
+		}
+		synchronized (deferred) {
+			deferred.remove(widgetId);
+		}
+		synchronized (pages) {
+			pages.delete(widgetId);
+		}
+		synchronized (refreshes) {
+			final Refresh refresh = refreshes.get(widgetId);
+			if (refresh != null)
+				refresh.cancellation.cancel();
+			refreshes.remove(widgetId);
+		}
+		EventListService.removeSnapshot(widgetId);
+	}
+
+	@Override
+	protected void onHandleIntent(final Intent intent) {
 		Log.d(TAG, "Handling " + intent);
+		Recorder.record(this, intent);
+		try {
+			final Refresh refresh;
+			synchronized (this) {
+				refresh = handleIntent(intent);
+			}
+			if (refresh != null)
+				finish(refresh);
+		} finally {
+			Recorder.finished(intent);
+		}
+	}
 
+	/**
+	 * @return the refresh started for the intent, if any
+	 */
+	private Refresh handleIntent(final Intent intent) {
 		final int widgetId = Integer.parseInt(intent.getData().getHost());
 		final AppWidgetManager manager = AppWidgetManager.getInstance(this);
 		final AppWidgetProviderInfo widgetInfo = manager
@@ -127,352 +288,1096 @@ public final class WidgetService extends IntentService {
 
 		if (null == widgetInfo) {
 			Log.d(TAG, "Invalid widget ID!");
-			return;
+			return null;
 		}
-		computeTimeRanges();
-		final WidgetInfo info = new WidgetInfo(widgetId, this);
-		final int maxLines = Integer.parseInt(info.lines);
-		final List<Event> birthdayEvents = new ArrayList<Event>(maxLines * 2);
-		final List<Event> agendaEvents = new ArrayList<Event>(maxLines);
 
-		Cursor cursor = null;
+		String action = intent.getAction();
+		if (ACTION_ROLLOVER.equals(action)
+				&& pushNextDay(widgetId, manager, widgetInfo))
+			return null;
+		if (ACTION_PREPARE.equals(action) && prepareNextDay(widgetId))
+			return null;
+		if (ACTION_NEXT_PAGE.equals(action)
+				&& turnPage(widgetId, manager, widgetInfo, 1))
+			return null;
+		if (ACTION_PREVIOUS_PAGE.equals(action)
+				&& turnPage(widgetId, manager, widgetInfo, -1))
+			return null;
+		if ((ACTION_ROLLOVER.equals(action) || ACTION_RELABEL.equals(action))
+				&& relayout(widgetId, manager, widgetInfo, null))
+			return null;
+		if (ACTION_BACKGROUND.equals(action)
+				&& updateBackground(widgetId, manager, widgetInfo))
+			return null;
+		if (ACTION_RESIZE.equals(action)
+				&& resize(widgetId, manager, widgetInfo))
+			return null;
+		if ((ACTION_BACKGROUND.equals(action) || ACTION_FORMAT.equals(action))
+				&& relayout(widgetId, manager, widgetInfo, new WidgetInfo(
+						widgetId, this)))
+			return null;
+		if ((ACTION_UPDATE.equals(action) || ACTION_CHANGED.equals(action))
+				&& defer(widgetId, action))
+			return null;
+		if (ACTION_PRESENT.equals(action)) {
+			action = takeDeferred(widgetId);
+			if (action == null)
+				return null;
+		}
+		if ((ACTION_UPDATE.equals(action) || ACTION_CHANGED.equals(action))
+				&& isServed(widgetId, intent.getLongExtra(EXTRA_SENT, -1)))
+			return null;
+		final Probe probe = ACTION_CHANGED.equals(action) ? probe(widgetId)
+				: null;
+		if (probe != null && probe.unchanged)
+			return null;
+
+		final long now = System.currentTimeMillis();
+		final TimeContext time = TimeContext.now();
+		Tracing.begin("config load");
+		final WidgetInfo info;
+		final List<WidgetInfo> group;
 		try {
-			cursor = getCursor();
-
-			while (true) {
-				boolean widgetFull = Math.ceil(birthdayEvents.size() / 2.0)
-						+ agendaEvents.size() >= maxLines;
-				boolean evenBirthdayCount = birthdayEvents.size() % 2 == 0;
-				if (widgetFull && evenBirthdayCount)
-					break; // widget is full
-
-				Event event = null;
-				while (event == null && !cursor.isAfterLast())
-					event = readEvent(cursor, info);
-				if (event == null)
-					break; // no further events
-
-				if (event.isBirthday) {
-					if (!birthdayEvents.contains(event))
-						birthdayEvents.add(event);
-				} else if (!widgetFull)
-					agendaEvents.add(event);
-			}
+			info = new WidgetInfo(widgetId, this);
+			group = getGroup(manager, widgetInfo, info);
 		} finally {
-			if (cursor != null)
-				cursor.close();
+			Tracing.end();
 		}
 
-		final String packageName = getPackageName();
-		final RemoteViews widget = new RemoteViews(getPackageName(),
-				widgetInfo.initialLayout);
-		widget.removeAllViews(R.id.widget);
-		widget.setOnClickPendingIntent(R.id.widget,
-				getOnClickPendingIntent(widgetId));
-
-		final boolean calendarColor = info.calendarColor;
-
-		Iterator<Event> bdayIterator = birthdayEvents.iterator();
-		while (bdayIterator.hasNext()) {
-			final RemoteViews view = new RemoteViews(packageName,
-					R.layout.birthdays);
-			view.setTextViewText(R.id.birthday1_text,
-					formatEventText(bdayIterator.next(), calendarColor, info));
-			if (bdayIterator.hasNext())
-				view.setTextViewText(R.id.birthday2_text,
-						formatEventText(bdayIterator.next(), false, info));
+		final Refresh refresh = new Refresh(info, group,
+				widgetInfo.initialLayout, time, now, probe);
+		new Thread(refresh, "Refresh of widget " + widgetId).start();
+		return refresh;
+	}
+
+	/**
+	 * Waits for the refresh without holding the service, an abandoned
+	 * refresh takes the service to complete on its own
+	 */
+	private void finish(final Refresh refresh) {
+		final boolean done = refresh.await(DEADLINE);
+		synchronized (this) {
+			if (done) {
+				refresh.complete();
+				return;
+			}
+
+			// let the refresh finish on its own, show what there is meanwhile
+			final int widgetId = refresh.info.widgetId;
+			final AppWidgetManager manager = AppWidgetManager.getInstance(this);
+			final AppWidgetProviderInfo widgetInfo = manager
+					.getAppWidgetInfo(widgetId);
+			Stats.count(Stats.DEADLINE_MISSES);
+			Log.d(TAG, "Widget " + widgetId + " missed the deadline, "
+					+ Stats.dump());
+			if (widgetInfo == null
+					|| !relayout(widgetId, manager, widgetInfo, null))
+				refresh.pushPartial(manager);
+		}
+	}
+
+	/**
+	 * Reads the events of a group on a thread of its own, so a slow calendar
+	 * provider holds up the service no longer than the deadline
+	 */
+	private final class Refresh implements Runnable {
+		private final WidgetInfo info;
+		private final List<WidgetInfo> group;
+		private final int layout;
+		private final EventModel model;
+		private final EventModel previous;
+		private final long searchStart;
+		private final WidgetLines lines;
+		private final WidgetLines nextDayLines;
+		private final WidgetLines ahead;
+		private final Cancellation cancellation = new Cancellation();
+		private final int generation;
+		private final Probe probe;
+		private long fingerprint;
+		private RuntimeException failure;
+		private boolean done = false;
+		private boolean abandoned = false;
+
+		/**
+		 * @param probe
+		 *            what the widget was probed for before, if it was
+		 */
+		Refresh(final WidgetInfo info, final List<WidgetInfo> group,
+				final int layout, final TimeContext time, final long now,
+				final Probe probe) {
+			this.info = info;
+			this.probe = probe;
+			this.group = group;
+			this.layout = layout;
+			model = new EventModel(info, time, now);
+			synchronized (models) {
+				previous = models.get(info.widgetId);
+			}
+			searchStart = getSearchStart(time);
+
+			final int maxLines = getMaxLines(info);
+			final TimeContext nextDay = time.nextDay();
+			lines = new WidgetLines(time, now, maxLines);
+			nextDayLines = new WidgetLines(nextDay, nextDay.todayStart,
+					maxLines);
+			// the first page and the ones read ahead
+			ahead = new WidgetLines(time, now, isScroll(info) ? 0 : maxLines
+					* (PAGES_AHEAD + 1));
+
+			// supersede the refreshes still reading for the group
+			synchronized (refreshes) {
+				generation = ++generations;
+				for (WidgetInfo member : group) {
+					final Refresh earlier = refreshes.get(member.widgetId);
+					if (earlier != null && !earlier.cancellation.isCancelled()) {
+						earlier.cancellation.cancel();
+						Stats.count(Stats.CANCELLED);
+					}
+					refreshes.put(member.widgetId, this);
+				}
+			}
+		}
+
+		/**
+		 * @return whether a later refresh of the widget was started
+		 */
+		private boolean isSuperseded() {
+			synchronized (refreshes) {
+				return cancellation.isCancelled()
+						|| refreshes.get(info.widgetId) != this;
+			}
+		}
+
+		/**
+		 * Forgets the refresh, unless a later one took its place
+		 */
+		private void release() {
+			synchronized (refreshes) {
+				for (WidgetInfo member : group)
+					if (refreshes.get(member.widgetId) == this)
+						refreshes.remove(member.widgetId);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				read();
+			} catch (final RuntimeException e) {
+				// a cancelled read ends anyhow, it is not a failure
+				if (!cancellation.isCancelled())
+					failure = e;
+			}
+			synchronized (this) {
+				done = true;
+				notifyAll();
+				if (!abandoned)
+					return;
+			}
+
+			if (failure != null) {
+				Log.e(TAG, "Refresh of widget " + info.widgetId + " failed",
+						failure);
+				release();
+				return;
+			}
+			if (cancellation.isCancelled()) {
+				Log.d(TAG, "Refresh " + generation + " of widget "
+						+ info.widgetId + " was cancelled");
+				return;
+			}
+			synchronized (WidgetService.this) {
+				complete();
+			}
+		}
+
+		private void read() {
+			// probe before reading, so any later change differs from it.
+			// The probe that found the widget changed is as good.
+			if (previous == null)
+				fingerprint = 0;
+			else if (probe != null && probe.start == searchStart
+					&& probe.end == previous.probeEnd)
+				fingerprint = probe.fingerprint;
 			else
-				view.setTextViewText(R.id.birthday2_text, "");
-			widget.addView(R.id.widget, view);
+				fingerprint = ChangeProbe.fingerprint(WidgetService.this,
+						info, searchStart, previous.probeEnd, cancellation);
+
+			EventSource source = null;
+			try {
+				Tracing.begin("query");
+				try {
+					source = getSource(info, model.time, searchStart,
+							cancellation);
+				} finally {
+					Tracing.end();
+				}
+
+				// also read ahead what the widget will show after midnight,
+				// and the next pages
+				Tracing.begin("row scan");
+				try {
+					while (!lines.isComplete() || !nextDayLines.isComplete()
+							|| !ahead.isComplete()) {
+						cancellation.check();
+						final Event event = source.next();
+						synchronized (this) {
+							if (event == null) {
+								model.exhausted = true;
+								break; // no further events
+							}
+
+							model.events.add(event);
+							lines.add(event);
+							nextDayLines.add(event);
+							ahead.add(event);
+						}
+					}
+				} finally {
+					Tracing.end();
+				}
+			} finally {
+				if (source != null)
+					source.close();
+			}
 		}
 
-		for (Event event : agendaEvents) {
-			final RemoteViews view = new RemoteViews(packageName,
-					R.layout.event);
-			view.setTextViewText(R.id.event_text,
-					formatEventText(event, calendarColor, info));
-			int alarmFlag = event.hasAlarm ? View.VISIBLE : View.GONE;
-			view.setViewVisibility(R.id.event_alarm, alarmFlag);
-			widget.addView(R.id.widget, view);
+		/**
+		 * Waits for the events to be read
+		 * 
+		 * @return false if they were not read in time, the refresh then
+		 *         completes on its own
+		 */
+		synchronized boolean await(final long timeout) {
+			final long until = SystemClock.uptimeMillis() + timeout;
+			while (!done) {
+				final long left = until - SystemClock.uptimeMillis();
+				if (left <= 0) {
+					abandoned = true;
+					return false;
+				}
+				try {
+					wait(left);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					abandoned = true;
+					return false;
+				}
+			}
+			return true;
 		}
 
-		final int opacityPercent = (int) (100 * info.opacity);
-        widget.setInt(R.id.background, "setImageLevel", opacityPercent);
+		/**
+		 * Stores and publishes the events read, unless a later refresh of the
+		 * widget was started meanwhile
+		 */
+		void complete() {
+			if (failure != null) {
+				release();
+				throw failure;
+			}
+			if (isSuperseded()) {
+				Log.d(TAG, "Dropping superseded refresh " + generation
+						+ " of widget " + info.widgetId);
+				return;
+			}
 
-		manager.updateAppWidget(widgetId, widget);
-		scheduleNextUpdate(agendaEvents, intent);
-	}
+			model.probeStart = searchStart;
+			if (model.exhausted || model.events.isEmpty())
+				model.probeEnd = searchStart + SEARCH_DURATION;
+			else
+				model.probeEnd = model.events.get(model.events.size() - 1).startMillis
+						+ DateUtils.DAY_IN_MILLIS;
+			if (previous != null && model.probeEnd <= previous.probeEnd) {
+				model.probeEnd = previous.probeEnd;
+				model.fingerprint = fingerprint;
+				model.probed = true;
+			}
 
-	private void scheduleNextUpdate(final List<Event> search,
-			final Intent intent) {
-		long nextUpdate = tomorrowStart;
-		for (Event event : search)
-			if (!event.allDay && event.endMillis < nextUpdate)
-				nextUpdate = event.endMillis;
+			synchronized (models) {
+				final EventModel current = models.get(info.widgetId);
+				if (current != null && current.readAt > model.readAt) {
+					Log.d(TAG, "Dropping outdated refresh of widget "
+							+ info.widgetId);
+					return;
+				}
+				for (WidgetInfo member : group)
+					models.put(member.widgetId, model.withInfo(member));
+			}
+			release();
+			synchronized (pages) {
+				for (WidgetInfo member : group)
+					pages.delete(member.widgetId);
+			}
+			lines.hasNextPage = model.hasPageAfter(lines);
+			nextDayLines.hasNextPage = model.hasPageAfter(nextDayLines);
+			publish(group, AppWidgetManager.getInstance(WidgetService.this),
+					layout, lines, nextDayLines);
+			if (Tracing.isEnabled()) {
+				Recorder.recordRead(WidgetService.this, model, lines.maxLines);
+				WakeupBudget.check(model, lines.maxLines, group.size());
+			}
+		}
 
-		PendingIntent pending = PendingIntent.getService(this, 0, intent, 0);
-		AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
-		alarmManager.cancel(pending);
-		alarmManager.set(AlarmManager.RTC, nextUpdate + 1000, pending);
+		/**
+		 * Pushes the events read so far, for widgets that have nothing to
+		 * display yet. Alarms are left to the complete refresh.
+		 */
+		void pushPartial(final AppWidgetManager manager) {
+			final WidgetLines partial = new WidgetLines(lines.time,
+					lines.now, lines.maxLines);
+			synchronized (this) {
+				for (Event event : model.events)
+					partial.add(event);
+			}
+			if (partial.agenda.isEmpty() && partial.birthdays.isEmpty())
+				return;
+
+			Log.d(TAG, "Pushing partial widget " + info.widgetId);
+			final boolean scroll = isScroll(info);
+			final List<RemoteViews> rows = scroll ? null : buildRows(info,
+					partial);
+			for (WidgetInfo member : group)
+				pushWidget(member.widgetId, manager, buildWidget(member,
+						layout, partial, rows, scroll), member, partial,
+						scroll);
+		}
 	}
 
-	private Event readEvent(final Cursor cursor, final WidgetInfo info) {
-		if (!cursor.moveToNext())
-			return null; // no next item
-		if (!info.calendars.get(cursor.getInt(COL_CALENDAR)).enabled)
-			return null; // Calendar is disabled
+	/**
+	 * @return whether the widget was refreshed after the intent was sent,
+	 *         for example along with another widget of its group
+	 */
+	private boolean isServed(final int widgetId, final long sent) {
+		final EventModel model;
+		synchronized (models) {
+			model = models.get(widgetId);
+		}
+		if (model == null || sent < 0 || model.readAt <= sent)
+			return false;
+		Log.d(TAG, "Widget " + widgetId + " is up to date");
+		return true;
+	}
+
+	/**
+	 * Puts off refreshing a widget while nobody can see it. Widgets that
+	 * have not been displayed yet are always refreshed.
+	 * 
+	 * @return true if the refresh was deferred
+	 */
+	private boolean defer(final int widgetId, final String action) {
+		final PowerManager power = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		if (power.isScreenOn())
+			return false;
+		synchronized (models) {
+			if (models.get(widgetId) == null)
+				return false;
+		}
 
-		final Event event = new Event();
+		synchronized (deferred) {
+			final String previous = deferred.get(widgetId);
+			if (previous != null)
+				Stats.count(Stats.RENDERS_AVOIDED);
+			if (previous == null || ACTION_UPDATE.equals(action))
+				deferred.put(widgetId, action);
+
+			if (screenOnReceiver == null) {
+				screenOnReceiver = new BroadcastReceiver() {
+					@Override
+					public void onReceive(final Context context,
+							final Intent intent) {
+						catchUp(context);
+					}
+				};
+				getApplicationContext().registerReceiver(screenOnReceiver,
+						new IntentFilter(Intent.ACTION_SCREEN_ON));
+			}
+		}
+		Stats.count(Stats.DEFERRED);
+		Log.d(TAG, "Deferred " + action + " of widget " + widgetId
+				+ " until the screen is on");
+		return true;
+	}
 
-		if (1 == cursor.getInt(COL_ALL_DAY))
-			event.allDay = true;
+	/**
+	 * Sends one refresh to every widget that had refreshes deferred, once
+	 * the screen is turned on again
+	 */
+	private static void catchUp(final Context context) {
+		synchronized (deferred) {
+			if (screenOnReceiver != null) {
+				context.getApplicationContext().unregisterReceiver(
+						screenOnReceiver);
+				screenOnReceiver = null;
+			}
+			for (int i = 0; i < deferred.size(); i++) {
+				final Intent intent = new Intent(ACTION_PRESENT, Uri
+						.parse("widget://" + deferred.keyAt(i)), context,
+						WidgetService.class);
+				intent.putExtra(EXTRA_SENT, System.currentTimeMillis());
+				Log.d(TAG, "Sending " + intent);
+				context.startService(intent);
+			}
+		}
+	}
 
-		event.endDay = cursor.getInt(COL_END_DAY);
-		event.endTime = new Time();
+	/**
+	 * @return the refresh deferred for the widget, or null if it is up to
+	 *         date
+	 */
+	private String takeDeferred(final int widgetId) {
+		final String action;
+		synchronized (deferred) {
+			action = deferred.get(widgetId);
+			deferred.remove(widgetId);
+		}
+		if (action != null) {
+			Log.d(TAG, "Catching up on widget " + widgetId + ", "
+					+ Stats.dump());
+			return action;
+		}
 
-		if (event.allDay) {
-			event.endTime.timezone = Time.getCurrentTimezone();
-			event.endMillis = event.endTime.setJulianDay(event.endDay);
-		} else {
-			event.endMillis = cursor.getLong(COL_END_MILLIS);
-			event.endTime.set(event.endMillis);
+		synchronized (models) {
+			if (models.get(widgetId) != null)
+				return null;
 		}
-		if ((event.allDay && event.endMillis < todayStart)
-				|| (!event.allDay && event.endMillis <= System
-						.currentTimeMillis()))
-			return null; // Skip events in the past
+		// the process was restarted, whatever was deferred is lost
+		return ACTION_CHANGED;
+	}
 
-		event.title = cursor.getString(COL_TITLE);
-		if (event.title == null)
-			event.title = "";
+	/**
+	 * Collects the widgets of the same size that display exactly what this
+	 * widget displays, so they can share one render
+	 * 
+	 * @return the group, starting with the widget itself
+	 */
+	private List<WidgetInfo> getGroup(final AppWidgetManager manager,
+			final AppWidgetProviderInfo widgetInfo, final WidgetInfo info) {
+		final List<WidgetInfo> group = new ArrayList<WidgetInfo>();
+		group.add(info);
+		for (final int otherId : manager.getAppWidgetIds(widgetInfo.provider)) {
+			if (otherId == info.widgetId)
+				continue;
+			// shares the calendars, no query just to compare the keys
+			final WidgetInfo other = new WidgetInfo(otherId, this,
+					info.calendars);
+			if (other.configKey.equals(info.configKey))
+				group.add(other);
+		}
+		if (group.size() > 1)
+			Log.d(TAG, "Widget " + info.widgetId + " shares its render with "
+					+ (group.size() - 1) + " other widgets");
+		return group;
+	}
 
-		if (event.allDay && !info.birthdays.equals(WidgetInfo.BIRTHDAY_NORMAL))
-			for (Pattern pattern : getBirthdayPatterns()) {
-				Matcher matcher = pattern.matcher(event.title);
-				if (!matcher.find())
-					continue;
-				event.title = matcher.group(1);
-				event.isBirthday = true;
-				break;
-			}
+	/**
+	 * A fingerprint of the widget's events over a window, see ChangeProbe
+	 */
+	private final static class Probe {
+		final long start;
+		final long end;
+		final long fingerprint;
+
+		/**
+		 * Whether the widget does not need to be refreshed
+		 */
+		final boolean unchanged;
+
+		Probe(final long start, final long end, final long fingerprint,
+				final boolean unchanged) {
+			this.start = start;
+			this.end = end;
+			this.fingerprint = fingerprint;
+			this.unchanged = unchanged;
+		}
+	}
 
-		// Skip birthday events if necessary
-		if (event.isBirthday && info.birthdays.equals(WidgetInfo.BIRTHDAY_HIDE))
+	/**
+	 * Probes whether anything the widget displays changed since its last
+	 * refresh
+	 * 
+	 * @return the probe, or null if the last refresh left nothing to
+	 *         compare to
+	 */
+	private Probe probe(final int widgetId) {
+		final EventModel model;
+		synchronized (models) {
+			model = models.get(widgetId);
+		}
+		if (model == null || !model.probed)
 			return null;
 
-		event.startDay = cursor.getInt(COL_START_DAY);
-		event.startTime = new Time();
-		if (event.allDay) {
-			event.startTime.timezone = event.endTime.timezone;
-			event.startMillis = event.startTime.setJulianDay(event.startDay);
-		} else {
-			event.startMillis = cursor.getLong(COL_START_MILLIS);
-			event.startTime.set(event.startMillis);
+		Stats.count(Stats.PROBES);
+		final WidgetInfo info = new WidgetInfo(widgetId, this);
+		final long fingerprint;
+		Tracing.begin("probe");
+		try {
+			// no refresh runs yet that could be cancelled
+			fingerprint = ChangeProbe.fingerprint(this, info,
+					model.probeStart, model.probeEnd, new Cancellation());
+		} finally {
+			Tracing.end();
 		}
+		final boolean unchanged = model.fingerprint == fingerprint;
+		if (unchanged)
+			Stats.count(Stats.PROBE_HITS);
+		Log.d(TAG, "Widget " + widgetId + (unchanged ? " unchanged, " : " changed, ")
+				+ Stats.dump());
+		return new Probe(model.probeStart, model.probeEnd, fingerprint,
+				unchanged);
+	}
 
-		event.location = cursor.getString(COL_LOCATION);
-		if (event.location != null
-				&& IS_EMPTY_PATTERN.matcher(event.location).find())
-			event.location = null;
+	/**
+	 * Lays out the events of the last refresh again, without querying the
+	 * calendar provider
+	 * 
+	 * @param changed
+	 *            the widget's new settings, or null if only the time or time
+	 *            zone changed
+	 * @return false if the events read last time do not suffice
+	 */
+	private boolean relayout(final int widgetId,
+			final AppWidgetManager manager,
+			final AppWidgetProviderInfo widgetInfo, final WidgetInfo changed) {
+		EventModel model;
+		synchronized (models) {
+			model = models.get(widgetId);
+		}
+		final TimeContext time = TimeContext.now();
+		if (model == null || time.julianDay < model.time.julianDay)
+			return false; // earlier events have not been read
+
+		Log.d(TAG, "Relaying out widget " + widgetId);
+		final EventModel read = model;
+		model = changed == null ? model.relocate(DayTable.get()) : model
+				.withInfo(changed);
+		synchronized (models) {
+			// unless a refresh completed meanwhile
+			if (models.get(widgetId) == read)
+				models.put(widgetId, model);
+		}
 
-		event.color = cursor.getInt(COL_COLOR);
-		event.hasAlarm = cursor.getInt(COL_HAS_ALARM) == 1;
-		return event;
+		final int maxLines = getMaxLines(model.info);
+		final long now = System.currentTimeMillis();
+		WidgetLines lines = model.fill(time, now, maxLines, getPage(widgetId));
+		if (!model.covers(lines) && lines.page > 0) {
+			setPage(widgetId, 0); // the events read ahead ran out
+			lines = model.fill(time, now, maxLines);
+		}
+		if (!model.covers(lines))
+			return false;
+
+		final TimeContext nextDay = time.nextDay();
+		WidgetLines nextDayLines = model.fill(nextDay, nextDay.todayStart,
+				maxLines);
+		if (!model.covers(nextDayLines))
+			nextDayLines = null;
+
+		final List<WidgetInfo> group = new ArrayList<WidgetInfo>(1);
+		group.add(model.info);
+		publish(group, manager, widgetInfo.initialLayout, lines, nextDayLines);
+		return true;
 	}
 
-	private PendingIntent getOnClickPendingIntent(final int widgetId) {
-		final Intent pickAction = new Intent("pick", Uri.parse("widget://"
-				+ widgetId), this, PickActionActivity.class);
-		pickAction.putExtra(PickActionActivity.EXTRA_WIDGET_ID, widgetId);
-		return PendingIntent.getActivity(this, 0, pickAction, 0);
+	/**
+	 * Lays the widget out for the size the launcher resized it to, from the
+	 * events read for it including the pages read ahead
+	 * 
+	 * @return false if the events read do not fill the new size
+	 */
+	private boolean resize(final int widgetId,
+			final AppWidgetManager manager,
+			final AppWidgetProviderInfo widgetInfo) {
+		final EventModel model;
+		synchronized (models) {
+			model = models.get(widgetId);
+		}
+		if (model == null)
+			return false;
+
+		final WidgetInfo info = new WidgetInfo(widgetId, this);
+		final WidgetInfo.Refresh refresh = info.getRefresh(model.info);
+		Log.d(TAG, "Widget " + widgetId + " resized, lines " + model.info.lines
+				+ " -> " + info.lines);
+		if (refresh == WidgetInfo.Refresh.NONE)
+			return true;
+		if (refresh == WidgetInfo.Refresh.QUERY)
+			return false;
+		return relayout(widgetId, manager, widgetInfo, info);
 	}
 
-	private Cursor getCursor() {
-		final long start = todayStart - 1000 * 60 * 60 * 24;
-		final long end = start + SEARCH_DURATION;
-		
-		final String[] projection;
-		
-		if (Build.VERSION.SDK_INT < 14)
-			projection = new String[] { "title",
-			"color", "eventLocation", "allDay", "startDay", "endDay", "end",
-			"hasAlarm", "calendar_id", "begin" };
-		else
-			projection = new String[] { "title",
-				"calendar_color", "eventLocation", "allDay", "startDay", "endDay", "end",
-				"hasAlarm", "calendar_id", "begin" };
-		
-		final String uriString = String.format(CURSOR_FORMAT, start, end);
-		return getContentResolver().query(Uri.parse(uriString),
-				projection, null, null, CURSOR_SORT);
+	/**
+	 * Shows the page before or after the one the widget displays, from the
+	 * events read ahead
+	 * 
+	 * @return false if the widget has no events to page through
+	 */
+	private boolean turnPage(final int widgetId,
+			final AppWidgetManager manager,
+			final AppWidgetProviderInfo widgetInfo, final int offset) {
+		setPage(widgetId, Math.max(getPage(widgetId) + offset, 0));
+		return relayout(widgetId, manager, widgetInfo, null);
+	}
+
+	private static int getPage(final int widgetId) {
+		synchronized (pages) {
+			return pages.get(widgetId, 0);
+		}
+	}
+
+	private static void setPage(final int widgetId, final int page) {
+		synchronized (pages) {
+			if (page == 0)
+				pages.delete(widgetId);
+			else
+				pages.put(widgetId, page);
+		}
 	}
 
-	private void computeTimeRanges() {
-		final Time now = new Time();
-		now.setToNow();
-		final int julianDay = Time.getJulianDay(System.currentTimeMillis(),
-				now.gmtoff);
+	/**
+	 * Only applies a changed opacity, to the widget as well as to the day
+	 * prepared for it
+	 * 
+	 * @return false if the widget cannot be updated partially
+	 */
+	private boolean updateBackground(final int widgetId,
+			final AppWidgetManager manager,
+			final AppWidgetProviderInfo widgetInfo) {
+		final EventModel model;
+		synchronized (models) {
+			model = models.get(widgetId);
+		}
+		if (model == null || Build.VERSION.SDK_INT < 11)
+			return false;
+
+		final WidgetInfo info = new WidgetInfo(widgetId, this);
+		synchronized (models) {
+			models.put(widgetId, model.withInfo(info));
+		}
 
-		yearStart = now.setJulianDay(julianDay - now.yearDay);
-		now.year++;
-		yearEnd = now.toMillis(false);
-		yesterdayStart = now.setJulianDay(julianDay - 1);
-		todayStart = now.setJulianDay(julianDay);
-		tomorrowStart = now.setJulianDay(julianDay + 1);
-		dayAfterTomorrowStart = now.setJulianDay(julianDay + 2);
-		oneWeekFromNow = now.setJulianDay(julianDay + 8);
+		final int opacityPercent = (int) (100 * info.opacity);
+		final int layout = isScroll(info) ? R.layout.widget_list
+				: widgetInfo.initialLayout;
+		final RemoteViews background = new RemoteViews(getPackageName(),
+				layout);
+		background.setInt(R.id.background, "setImageLevel", opacityPercent);
+		manager.partiallyUpdateAppWidget(widgetId, background);
+
+		synchronized (nextDays) {
+			final NextDay day = nextDays.get(widgetId);
+			if (day != null) {
+				for (int i = 0; i < day.group.size(); i++)
+					if (day.group.get(i).widgetId == widgetId)
+						day.group.set(i, info);
+				if (day.widgets != null)
+					day.widgets.get(widgetId).setInt(R.id.background,
+							"setImageLevel", opacityPercent);
+			}
+		}
+		return true;
 	}
 
-	private synchronized Pattern[] getBirthdayPatterns() {
-		if (birthdayPatterns == null) {
-			String[] strings = getResources().getStringArray(
-					R.array.birthday_patterns);
-			birthdayPatterns = new Pattern[strings.length];
-			for (int i = 0; i < strings.length; i++) {
-				birthdayPatterns[i] = Pattern.compile(strings[i]);
+	/**
+	 * Pushes the lines to every widget of the group and schedules their next
+	 * update
+	 * 
+	 * @param nextDayLines
+	 *            what to display after midnight, or null if unknown
+	 */
+	private void publish(final List<WidgetInfo> group,
+			final AppWidgetManager manager, final int layout,
+			final WidgetLines lines, final WidgetLines nextDayLines) {
+		final boolean scroll = isScroll(group.get(0));
+		final List<RemoteViews> rows = scroll ? null : buildRows(group.get(0),
+				lines);
+
+		// the next day's lines do not depend on updates before midnight, so
+		// they are pushed even if those are put off
+		final NextDay day = nextDayLines == null ? null : new NextDay(group,
+				layout, nextDayLines, scroll);
+
+		boolean prepareNow = false;
+		for (WidgetInfo member : group) {
+			final int widgetId = member.widgetId;
+			synchronized (nextDays) {
+				if (day == null)
+					nextDays.remove(widgetId);
+				else
+					nextDays.put(widgetId, day);
 			}
+
+			pushWidget(widgetId, manager, buildWidget(member, layout, lines,
+					rows, scroll), member, lines, scroll);
+
+			prepareNow = AlarmSchedule.published(getAlarms(widgetId), lines,
+					day != null, member.countdown);
 		}
-		return birthdayPatterns;
+
+		if (prepareNow)
+			prepareNextDay(group.get(0).widgetId);
 	}
 
-	private CharSequence formatEventText(final Event event,
-			final boolean showColor, final WidgetInfo info) {
-		if (event == null)
-			return "";
+	private static boolean isScroll(final WidgetInfo info) {
+		return info.scroll
+				&& Build.VERSION.SDK_INT >= EventListService.MIN_SDK;
+	}
 
-		final SpannableStringBuilder builder = new SpannableStringBuilder();
+	private static int getMaxLines(final WidgetInfo info) {
+		return isScroll(info) ? SCROLL_MAX_LINES : Integer
+				.parseInt(info.lines);
+	}
 
-		if (showColor) {
-			if (event.isBirthday)
-				builder.append(COLOR_HIDDEN);
-			else {
-				builder.append(COLOR_DOT);
-				builder.setSpan(new ForegroundColorSpan(event.color), 0, 1,
-						Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+	/**
+	 * Renders the lines read ahead for the next day, so they can be pushed
+	 * as soon as the day starts. This is done once for the whole group.
+	 * 
+	 * @return false if nothing was read ahead
+	 */
+	private boolean prepareNextDay(final int widgetId) {
+		final NextDay day;
+		synchronized (nextDays) {
+			day = nextDays.get(widgetId);
+		}
+		if (day == null)
+			return false;
+		if (day.widgets != null)
+			return true; // already prepared along with the group
+
+		final List<RemoteViews> rows = day.scroll ? null : buildRows(
+				day.group.get(0), day.lines);
+		final SparseArray<RemoteViews> widgets = new SparseArray<RemoteViews>(
+				day.group.size());
+		for (WidgetInfo member : day.group) {
+			synchronized (nextDays) {
+				if (nextDays.get(member.widgetId) != day)
+					continue; // refreshed on its own since
 			}
+			widgets.put(member.widgetId, buildWidget(member, day.layout,
+					day.lines, rows, day.scroll));
+			AlarmSchedule.prepared(getAlarms(member.widgetId), day.lines);
+		}
+		day.widgets = widgets;
+		return true;
+	}
+
+	/**
+	 * Pushes the widget prepared for the new day
+	 * 
+	 * @return false if no prepared widget matches the current day
+	 */
+	private boolean pushNextDay(final int widgetId,
+			final AppWidgetManager manager,
+			final AppWidgetProviderInfo widgetInfo) {
+		final NextDay day;
+		synchronized (nextDays) {
+			day = nextDays.get(widgetId);
+			nextDays.remove(widgetId);
+		}
+		if (day == null || day.widgets == null
+				|| TimeContext.now().julianDay != day.lines.time.julianDay)
+			return false;
+
+		WidgetInfo info = null;
+		for (WidgetInfo member : day.group)
+			if (member.widgetId == widgetId)
+				info = member;
+
+		Log.d(TAG, "Pushing prepared widget " + widgetId);
+		setPage(widgetId, 0);
+		pushWidget(widgetId, manager, day.widgets.get(widgetId), info,
+				day.lines, day.scroll);
+
+		AlarmSchedule.pushedNextDay(getAlarms(widgetId), day.lines,
+				info.countdown);
+		return true;
+	}
+
+	/**
+	 * Wraps rendered rows into a widget, with the widget's own click target,
+	 * page controls and background
+	 */
+	private RemoteViews buildWidget(final WidgetInfo info, final int layout,
+			final WidgetLines lines, final List<RemoteViews> rows,
+			final boolean scroll) {
+		final RemoteViews widget;
+		if (scroll)
+			widget = buildListWidget(info.widgetId);
+		else {
+			widget = new RemoteViews(getPackageName(), layout);
+			widget.removeAllViews(R.id.widget);
+			widget.setOnClickPendingIntent(R.id.widget,
+					getOnClickPendingIntent(info.widgetId));
+			for (RemoteViews row : rows)
+				widget.addView(R.id.widget, row);
+
+			widget.setViewVisibility(R.id.page_previous,
+					lines.page > 0 ? View.VISIBLE : View.GONE);
+			widget.setOnClickPendingIntent(R.id.page_previous,
+					getServicePendingIntent(info.widgetId,
+							ACTION_PREVIOUS_PAGE));
+			widget.setViewVisibility(R.id.page_next,
+					lines.hasNextPage ? View.VISIBLE : View.GONE);
+			widget.setOnClickPendingIntent(R.id.page_next,
+					getServicePendingIntent(info.widgetId, ACTION_NEXT_PAGE));
 		}
 
-		final int timeStartPos = builder.length();
-		formatTime(builder, event, info);
-		builder.append(' ');
-		final int timeEndPos = builder.length();
-		builder.setSpan(new ForegroundColorSpan(DATETIME_COLOR), timeStartPos,
-				timeEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+		final int opacityPercent = (int) (100 * info.opacity);
+        widget.setInt(R.id.background, "setImageLevel", opacityPercent);
+		return widget;
+	}
+
+	private void pushWidget(final int widgetId,
+			final AppWidgetManager manager, final RemoteViews widget,
+			final WidgetInfo info, final WidgetLines lines,
+			final boolean scroll) {
+		Tracing.begin("push");
+		Stats.count(Stats.RENDERS);
+		try {
+			if (scroll)
+				EventListService.putSnapshot(widgetId, info, lines);
+			manager.updateAppWidget(widgetId, widget);
+			if (scroll)
+				manager.notifyAppWidgetViewDataChanged(widgetId, R.id.list);
+		} finally {
+			Tracing.end();
+		}
+	}
 
-		builder.append(event.title);
-		final int titleEndPos = builder.length();
-		builder.setSpan(new ForegroundColorSpan(0xffffffff), timeEndPos,
-				titleEndPos, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+	private List<RemoteViews> buildRows(final WidgetInfo info,
+			final WidgetLines lines) {
+		Tracing.begin("format");
+		try {
+			final String packageName = getPackageName();
+			final List<RemoteViews> rows = new ArrayList<RemoteViews>();
+
+			final EventFormatter formatter = new EventFormatter(this, info,
+					lines.time);
+			final boolean calendarColor = info.calendarColor;
+
+			Iterator<Event> bdayIterator = lines.birthdays.iterator();
+			while (bdayIterator.hasNext()) {
+				final RemoteViews view = new RemoteViews(packageName,
+						R.layout.birthdays);
+				view.setTextViewText(R.id.birthday1_text,
+						formatter.format(bdayIterator.next(), calendarColor));
+				if (bdayIterator.hasNext())
+					view.setTextViewText(R.id.birthday2_text,
+							formatter.format(bdayIterator.next(), false));
+				else
+					view.setTextViewText(R.id.birthday2_text, "");
+				rows.add(view);
+			}
 
-		if (event.location != null) {
-			builder.append(SEPARATOR_COMMA);
-			builder.append(event.location);
-			builder.setSpan(new ForegroundColorSpan(DATETIME_COLOR),
-					titleEndPos, builder.length(),
-					Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+			final Event next = lines.getNextStart();
+			for (Event event : lines.agenda) {
+				final RemoteViews view = new RemoteViews(packageName,
+						R.layout.event);
+				view.setTextViewText(R.id.event_text,
+						formatter.format(event, calendarColor));
+				formatter.setCountdown(view, event, event == next, lines.now);
+				int alarmFlag = event.hasAlarm ? View.VISIBLE : View.GONE;
+				view.setViewVisibility(R.id.event_alarm, alarmFlag);
+				rows.add(view);
+			}
+			return rows;
+		} finally {
+			Tracing.end();
 		}
+	}
 
-		final float size = Integer.parseInt(info.size) / 100f;
-		builder.setSpan(new RelativeSizeSpan(size), 0, builder.length(), 0);
+	private RemoteViews buildListWidget(final int widgetId) {
+		final RemoteViews widget = new RemoteViews(getPackageName(),
+				R.layout.widget_list);
+		final Intent adapter = new Intent(this, EventListService.class);
+		adapter.setData(Uri.parse("widget://" + widgetId));
+		widget.setRemoteAdapter(widgetId, R.id.list, adapter);
+		widget.setEmptyView(R.id.list, R.id.empty);
+
+		final PendingIntent onClick = getOnClickPendingIntent(widgetId);
+		widget.setPendingIntentTemplate(R.id.list, onClick);
+		widget.setOnClickPendingIntent(R.id.empty, onClick);
+		widget.setOnClickPendingIntent(R.id.background, onClick);
+		return widget;
+	}
+
+	/**
+	 * @return the alarms of the widget, as AlarmSchedule sets them
+	 */
+	private AlarmSchedule.Alarms getAlarms(final int widgetId) {
+		return new AlarmSchedule.Alarms() {
+			@Override
+			public void set(final String action, final long time) {
+				setAlarm(widgetId, action, time);
+			}
 
-		return builder;
+			@Override
+			public void cancel(final String action) {
+				cancelAlarm(widgetId, action);
+			}
+		};
 	}
 
-	private void formatTime(final SpannableStringBuilder builder,
-			final Event event, final WidgetInfo info) {
-		final Formatter formatter = new Formatter(builder);
+	/**
+	 * Replaces the alarm of the action
+	 */
+	private void setAlarm(final int widgetId, final String action,
+			final long time) {
+		final AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		Stats.count(Stats.ALARMS);
+		final Intent intent = new Intent(action, Uri.parse("widget://"
+				+ widgetId), this, WidgetService.class);
+		intent.putExtra(EXTRA_SENT, time);
+		final PendingIntent operation = PendingIntent.getService(this, 0,
+				intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		if (ACTION_UPDATE.equals(action) && Build.VERSION.SDK_INT >= 19)
+			alarmManager.setWindow(AlarmManager.RTC, time, UPDATE_WINDOW,
+					operation);
+		else
+			alarmManager.set(AlarmManager.RTC, time, operation);
+	}
 
-		final boolean isStartToday = (todayStart <= event.startMillis && event.startMillis <= tomorrowStart);
-		final boolean isEndToday = (todayStart <= event.endMillis && event.endMillis <= tomorrowStart);
-		final boolean showStartDay = !isStartToday || !isEndToday
-				|| event.allDay;
+	private void cancelAlarm(final int widgetId, final String action) {
+		final AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		alarmManager.cancel(getServicePendingIntent(widgetId, action));
+	}
 
-		// all-Day events
-		if (event.allDay) {
-			if (showStartDay)
-				appendDay(formatter, builder, event.startMillis,
-						event.startTime, info);
+	private PendingIntent getServicePendingIntent(final int widgetId,
+			final String action) {
+		final Intent intent = new Intent(action, Uri.parse("widget://"
+				+ widgetId), this, WidgetService.class);
+		return PendingIntent.getService(this, 0, intent, 0);
+	}
 
-			if (event.startDay != event.endDay) {
-				builder.append('-');
-				appendDay(formatter, builder, event.endMillis, event.endTime,
-						info);
+	/**
+	 * @return the events of all sources the widget reads, merged into
+	 *         display order, without the ones its title rules hide
+	 */
+	private EventSource getSource(final WidgetInfo info,
+			final TimeContext time, final long start,
+			final Cancellation cancellation) {
+		final List<EventSource> sources = new ArrayList<EventSource>();
+		sources.add(new WidgetSource(InstanceIndex.getSource(this, info
+				.getEnabledCalendars(), start, start + SEARCH_DURATION,
+				cancellation), info, time));
+		if (ChangeProbe.isReadingContacts(info))
+			sources.add(ContactBirthdays.open(this, info.birthdays
+					.equals(WidgetInfo.BIRTHDAY_SPECIAL),
+					getString(R.string.format_birthday), time, start
+							+ SEARCH_DURATION));
+		if (info.icsFile.length() > 0)
+			try {
+				sources.add(IcsSource.open(this, new File(info.icsFile), time,
+						start + SEARCH_DURATION));
+			} catch (IOException e) {
+				Log.w(TAG, "Could not read " + info.icsFile, e);
 			}
-			return;
+		return TitleFilter.filter(MergedSource.merge(sources),
+				TitleFilter.get(info));
+	}
+
+	/**
+	 * The instances shared by all widgets as this widget shows them
+	 */
+	private final class WidgetSource implements EventSource {
+		private final EventSource instances;
+		private final WidgetInfo info;
+		private final TimeContext time;
+
+		WidgetSource(final EventSource instances, final WidgetInfo info,
+				final TimeContext time) {
+			this.instances = instances;
+			this.info = info;
+			this.time = time;
 		}
 
-		// events with no duration
-		if (!info.endTime || event.startMillis == event.endMillis) {
-			if (showStartDay) {
-				appendDay(formatter, builder, event.startMillis,
-						event.startTime, info);
-				builder.append(' ');
+		@Override
+		public Event next() {
+			Event instance;
+			while ((instance = instances.next()) != null) {
+				final Event event = applySettings(instance, info, time);
+				if (event != null)
+					return event;
 			}
-			appendHour(formatter, builder, event.startMillis, info);
-			return;
+			return null;
 		}
 
-		// events with duration
-		if (showStartDay) {
-			appendDay(formatter, builder, event.startMillis, event.startTime,
-					info);
-			builder.append(' ');
+		@Override
+		public void close() {
+			instances.close();
 		}
-		appendHour(formatter, builder, event.startMillis, info);
-		builder.append('-');
+	}
+
+	/**
+	 * @return the instance the way the widget shows it, or null if the
+	 *         widget does not show it
+	 */
+	private Event applySettings(final Event instance, final WidgetInfo info,
+			final TimeContext time) {
+		if ((instance.allDay && instance.endMillis < time.todayStart)
+				|| (!instance.allDay && instance.endMillis <= System
+						.currentTimeMillis()))
+			return null; // Skip events in the past
 
-		if (Math.abs(event.endMillis - event.startMillis) > DAY_IN_MILLIS) {
-			appendDay(formatter, builder, event.endMillis, event.endTime, info);
-			builder.append(' ');
+		if (!instance.allDay)
+			return instance;
+		// with the contacts read, their birthdays are recognized to drop
+		// them, titles are only matched on days the contacts have one
+		final boolean readingContacts = ChangeProbe.isReadingContacts(info);
+		if (readingContacts
+				? !ContactBirthdays.hasBirthdayOn(this, instance.startDay)
+				: info.birthdays.equals(WidgetInfo.BIRTHDAY_NORMAL))
+			return instance;
+
+		for (Pattern pattern : getBirthdayPatterns()) {
+			Matcher matcher = pattern.matcher(instance.title);
+			if (!matcher.find())
+				continue;
+
+			// Skip birthday events if necessary
+			if (info.birthdays.equals(WidgetInfo.BIRTHDAY_HIDE))
+				return null;
+			if (readingContacts
+					&& ContactBirthdays.contains(this, instance.startDay,
+							matcher.group(1)))
+				return null;
+			if (info.birthdays.equals(WidgetInfo.BIRTHDAY_NORMAL))
+				return instance;
+
+			// the instance is shared with other widgets
+			final Event event = instance.copy();
+			event.title = matcher.group(1);
+			event.isBirthday = true;
+			return event;
 		}
-		appendHour(formatter, builder, event.endMillis, info);
+		return instance;
 	}
 
-	private void appendHour(final Formatter formatter,
-			final SpannableStringBuilder builder, final long time,
-			WidgetInfo info) {
-		if (info.twentyfourHours)
-			formatter.format("%1$tk:%1$tM", time);
-		else {
-			formatter.format("%1$tl:%1$tM", time);
-			int start = builder.length();
-			formatter.format("%1$tp", time);
-			int end = builder.length();
-			builder.setSpan(new RelativeSizeSpan(0.7f), start, end, 0);
-		}
-	}
-
-	private void appendDay(final Formatter formatter,
-			final SpannableStringBuilder builder, final long time,
-			final Time day, final WidgetInfo info) {
-		final boolean tomorrowYesterday = info.tomorrowYesterday;
-		final long specialStart = tomorrowYesterday ? yesterdayStart
-				: todayStart;
-		final long specialEnd = tomorrowYesterday ? dayAfterTomorrowStart
-				: tomorrowStart;
-		final boolean weekday = info.weekday;
-		final long weekEnd = weekday ? oneWeekFromNow : tomorrowStart;
-
-		if (specialStart <= time && time < specialEnd) {
-			final int from = builder.length();
-			if (time < todayStart)
-				builder.append(getResources().getString(
-						R.string.format_yesterday));
-			else if (time < tomorrowStart)
-				builder.append(getResources().getString(R.string.format_today));
-			else
-				builder.append(getResources().getString(
-						R.string.format_tomorrow));
-
-			final RelativeSizeSpan smaller = new RelativeSizeSpan(0.7f);
-			builder.setSpan(smaller, from, builder.length(), 0);
-		} else if (todayStart <= time && time < weekEnd) // this week?
-			builder.append(getResources().getStringArray(
-					R.array.format_day_of_week)[day.weekDay]);
-		else if (yearStart <= time && time < yearEnd) // this year?
-			formatter.format(info.dateFormat.shortFormat, time);
-		else
-			// not this year
-			formatter.format(info.dateFormat.longFormat, time);
+	private PendingIntent getOnClickPendingIntent(final int widgetId) {
+		final Intent pickAction = new Intent("pick", Uri.parse("widget://"
+				+ widgetId), this, PickActionActivity.class);
+		pickAction.putExtra(PickActionActivity.EXTRA_WIDGET_ID, widgetId);
+		return PendingIntent.getActivity(this, 0, pickAction, 0);
+	}
+
+	private static long getSearchStart(final TimeContext time) {
+		return time.todayStart - 1000 * 60 * 60 * 24;
+	}
+
+	/**
+	 * Called from the refresh threads, which must not wait for the service
+	 * while it handles an intent
+	 */
+	private Pattern[] getBirthdayPatterns() {
+		synchronized (birthdayPatternsLock) {
+			if (birthdayPatterns == null) {
+				String[] strings = getResources().getStringArray(
+						R.array.birthday_patterns);
+				birthdayPatterns = new Pattern[strings.length];
+				for (int i = 0; i < strings.length; i++) {
+					birthdayPatterns[i] = Pattern.compile(strings[i]);
+				}
+			}
+			return birthdayPatterns;
+		}
 	}
 }
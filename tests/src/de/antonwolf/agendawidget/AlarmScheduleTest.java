@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public final class AlarmScheduleTest extends TestCase {
+	private static final long MINUTE = 60 * 1000;
+	private static final long HOUR = 60 * MINUTE;
+
+	/**
+	 * Writes down what the schedule sets and cancels, in order
+	 */
+	private static final class Recorded implements AlarmSchedule.Alarms {
+		final List<String> calls = new ArrayList<String>();
+
+		@Override
+		public void set(final String action, final long time) {
+			calls.add("set " + action + " " + time);
+		}
+
+		@Override
+		public void cancel(final String action) {
+			calls.add("cancel " + action);
+		}
+	}
+
+	private final int today = DayTable.getJulianDay(2024, 3, 4);
+	private final TimeContext time = TimeContext.of(today, DayTable
+			.withOffset(HOUR, today));
+	private final Recorded alarms = new Recorded();
+
+	private WidgetLines lines(final long now, final Event... events) {
+		final WidgetLines lines = new WidgetLines(time, now, 5);
+		for (Event event : events)
+			lines.add(event);
+		return lines;
+	}
+
+	private void assertCalls(final String... calls) {
+		final List<String> expected = new ArrayList<String>();
+		for (String call : calls)
+			expected.add(call);
+		assertEquals(expected, alarms.calls);
+	}
+
+	public void testPublishedWithNextDayPreparesBeforeMidnight() {
+		final long end = time.todayStart + 10 * HOUR;
+		assertFalse(AlarmSchedule.published(alarms, lines(time.todayStart
+				+ 8 * HOUR, ListSource.event("a", end - HOUR, end)), true,
+				false));
+		assertCalls("set update " + (end + 1000), "cancel rollover",
+				"set prepare " + (time.tomorrowStart - 5 * MINUTE));
+	}
+
+	public void testPublishedWithoutNextDayRollsOver() {
+		assertFalse(AlarmSchedule.published(alarms, lines(time.todayStart),
+				false, false));
+		assertCalls("cancel update", "cancel prepare", "set rollover "
+				+ (time.tomorrowStart + 1000));
+	}
+
+	public void testPublishedLatePreparesRightAway() {
+		assertTrue(AlarmSchedule.published(alarms, lines(time.tomorrowStart
+				- MINUTE), true, false));
+		assertCalls("cancel update");
+	}
+
+	public void testCountdownUpdatesAtStart() {
+		final long start = time.todayStart + 9 * HOUR;
+		AlarmSchedule.published(alarms, lines(time.todayStart + 8 * HOUR,
+				ListSource.event("a", start, start + HOUR)), true, true);
+		assertEquals("set update " + (start + 1000), alarms.calls.get(0));
+	}
+
+	public void testPrepared() {
+		final TimeContext tomorrow = time.nextDay();
+		AlarmSchedule.prepared(alarms, new WidgetLines(tomorrow,
+				tomorrow.todayStart, 5));
+		assertCalls("cancel prepare", "set rollover "
+				+ (time.tomorrowStart + 1000));
+	}
+
+	public void testPushedNextDayRefreshesBeforeMidnight() {
+		AlarmSchedule.pushedNextDay(alarms, lines(time.todayStart), false);
+		assertCalls("set update " + (time.tomorrowStart - 5 * MINUTE),
+				"cancel prepare", "set rollover " + (time.tomorrowStart + 1000));
+	}
+}
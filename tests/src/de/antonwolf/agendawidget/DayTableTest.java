@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import junit.framework.TestCase;
+
+public final class DayTableTest extends TestCase {
+	private static final int SUNDAY = 0;
+	private static final long HOUR = 60 * 60 * 1000;
+
+	private static void assertDate(final int year, final int month,
+			final int day, final int julianDay) {
+		final int[] date = DayTable.getDate(julianDay);
+		assertEquals("year", year, date[0]);
+		assertEquals("month", month, date[1]);
+		assertEquals("day", day, date[2]);
+	}
+
+	public void testEpoch() {
+		assertEquals(2440588, DayTable.getJulianDay(1970, 1, 1));
+		assertDate(1970, 1, 1, 2440588);
+		assertEquals(4, DayTable.getWeekDay(2440588)); // a thursday
+	}
+
+	public void testYearBoundary() {
+		final int newYearsEve = DayTable.getJulianDay(2023, 12, 31);
+		assertEquals(newYearsEve + 1, DayTable.getJulianDay(2024, 1, 1));
+		assertDate(2023, 12, 31, newYearsEve);
+		assertDate(2024, 1, 1, newYearsEve + 1);
+		assertEquals(SUNDAY, DayTable.getWeekDay(newYearsEve));
+		assertEquals(1, DayTable.getWeekDay(newYearsEve + 1));
+	}
+
+	public void testLeapDays() {
+		final int leapDay = DayTable.getJulianDay(2024, 2, 29);
+		assertEquals(leapDay - 1, DayTable.getJulianDay(2024, 2, 28));
+		assertEquals(leapDay + 1, DayTable.getJulianDay(2024, 3, 1));
+		assertDate(2024, 2, 29, leapDay);
+		assertEquals(4, DayTable.getWeekDay(leapDay));
+
+		assertDate(2023, 3, 1, DayTable.getJulianDay(2023, 2, 28) + 1);
+		// every 400 years is a leap year, other centuries are not
+		assertDate(2000, 2, 29, DayTable.getJulianDay(2000, 3, 1) - 1);
+		assertDate(1900, 2, 28, DayTable.getJulianDay(1900, 3, 1) - 1);
+		assertDate(2100, 2, 28, DayTable.getJulianDay(2100, 3, 1) - 1);
+		assertEquals(366, DayTable.getJulianDay(2025, 1, 1)
+				- DayTable.getJulianDay(2024, 1, 1));
+		assertEquals(365, DayTable.getJulianDay(2024, 1, 1)
+				- DayTable.getJulianDay(2023, 1, 1));
+	}
+
+	/**
+	 * The days clocks change in the US and in Europe are ordinary days to
+	 * the calendar, the table handles their length
+	 */
+	public void testDaylightSavingSundays() {
+		// the day itself and the day after
+		final int[][] days = { { 2024, 3, 10, 3, 11 }, { 2024, 11, 3, 11, 4 },
+				{ 2024, 3, 31, 4, 1 }, { 2024, 10, 27, 10, 28 } };
+		for (int[] day : days) {
+			final int julianDay = DayTable.getJulianDay(day[0], day[1],
+					day[2]);
+			assertDate(day[0], day[1], day[2], julianDay);
+			assertEquals(SUNDAY, DayTable.getWeekDay(julianDay));
+			assertDate(day[0], day[3], day[4], julianDay + 1);
+			assertEquals(julianDay + 1, DayTable.getJulianDay(day[0],
+					day[3], day[4]));
+		}
+	}
+
+	public void testRoundTrip() {
+		int julianDay = DayTable.getJulianDay(1900, 1, 1);
+		final int end = DayTable.getJulianDay(2101, 1, 1);
+		int weekDay = DayTable.getWeekDay(julianDay);
+		for (; julianDay < end; julianDay++) {
+			final int[] date = DayTable.getDate(julianDay);
+			assertEquals(julianDay, DayTable.getJulianDay(date[0], date[1],
+					date[2]));
+			assertEquals(weekDay, DayTable.getWeekDay(julianDay));
+			weekDay = (weekDay + 1) % 7;
+		}
+	}
+
+	/**
+	 * Checks the day in the zone that starts at midnight, with the clocks
+	 * changing at transition and the next day starting at nextMidnight
+	 */
+	private static void assertTransition(final String timezone,
+			final int year, final int month, final int day,
+			final long midnight, final long transition,
+			final long nextMidnight, final long hours) {
+		final int julianDay = DayTable.getJulianDay(year, month, day);
+		final DayTable days = DayTable.forZone(timezone, julianDay);
+		assertEquals(midnight, days.getDayStart(julianDay));
+		assertEquals(nextMidnight, days.getDayStart(julianDay + 1));
+		assertEquals(hours * HOUR, days.getDayStart(julianDay + 1)
+				- days.getDayStart(julianDay));
+
+		assertEquals(julianDay - 1, days.getJulianDay(midnight - 1));
+		assertEquals(julianDay, days.getJulianDay(midnight));
+		assertEquals(julianDay, days.getJulianDay(transition - 1));
+		assertEquals(julianDay, days.getJulianDay(transition));
+		assertEquals(julianDay, days.getJulianDay(nextMidnight - 1));
+		assertEquals(julianDay + 1, days.getJulianDay(nextMidnight));
+	}
+
+	public void testSpringForwardNewYork() {
+		// 2:00 EST becomes 3:00 EDT, at 7:00 UTC
+		assertTransition("America/New_York", 2024, 3, 10, 1710046800000L,
+				1710054000000L, 1710129600000L, 23);
+	}
+
+	public void testFallBackNewYork() {
+		// 2:00 EDT becomes 1:00 EST, at 6:00 UTC
+		assertTransition("America/New_York", 2024, 11, 3, 1730606400000L,
+				1730613600000L, 1730696400000L, 25);
+	}
+
+	public void testSpringForwardBerlin() {
+		// 2:00 CET becomes 3:00 CEST, at 1:00 UTC
+		assertTransition("Europe/Berlin", 2024, 3, 31, 1711839600000L,
+				1711846800000L, 1711922400000L, 23);
+	}
+
+	public void testFallBackBerlin() {
+		// 3:00 CEST becomes 2:00 CET, at 1:00 UTC
+		assertTransition("Europe/Berlin", 2024, 10, 27, 1729980000000L,
+				1729990800000L, 1730070000000L, 25);
+	}
+
+	public void testDayStartWithOffset() {
+		final int today = DayTable.getJulianDay(2024, 1, 1);
+		final DayTable days = DayTable.withOffset(HOUR, today);
+		// 2024-01-01 00:00 in UTC+1
+		final long midnight = 1704063600000L;
+		assertEquals(midnight, days.getDayStart(today));
+		assertEquals(today, days.getJulianDay(midnight));
+		assertEquals(today - 1, days.getJulianDay(midnight - 1));
+		assertEquals(midnight + 24 * HOUR, days.getDayStart(today + 1));
+	}
+}
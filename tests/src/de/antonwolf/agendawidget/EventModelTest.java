@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import junit.framework.TestCase;
+
+public final class EventModelTest extends TestCase {
+	private static final long HOUR = 60 * 60 * 1000;
+
+	public void testRelocateLeavesSharedEvents() {
+		final int today = DayTable.getJulianDay(2024, 3, 4);
+		final DayTable utc = DayTable.withOffset(0, today);
+		final DayTable east = DayTable.withOffset(2 * HOUR, today);
+		final EventModel model = new EventModel(null, TimeContext.of(today,
+				utc), utc.getDayStart(today));
+
+		final Event timed = ListSource.event("late", utc.getDayStart(today)
+				+ 23 * HOUR, utc.getDayStart(today) + 24 * HOUR);
+		timed.relocate(utc);
+		final Event allDay = ListSource.event("all day", 0, 0);
+		allDay.allDay = true;
+		allDay.startDay = today;
+		allDay.endDay = today + 1;
+		allDay.relocate(utc);
+		model.events.add(allDay);
+		model.events.add(timed);
+
+		final EventModel relocated = model.relocate(east);
+		assertEquals(today, timed.startDay);
+		assertEquals(utc.getDayStart(today), allDay.startMillis);
+
+		assertEquals(today + 1, relocated.events.get(1).startDay);
+		assertEquals(timed.startMillis, relocated.events.get(1).startMillis);
+		assertEquals(east.getDayStart(today), relocated.events.get(0).startMillis);
+		assertEquals(today, relocated.events.get(0).startDay);
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * @author Anton Wolf
+ * 
+ *         Hands out a fixed list of events, standing in for the providers
+ */
+final class ListSource implements EventSource {
+	private final Iterator<Event> events;
+	boolean closed = false;
+
+	ListSource(final List<Event> events) {
+		this.events = events.iterator();
+	}
+
+	ListSource(final Event... events) {
+		this(Arrays.asList(events));
+	}
+
+	@Override
+	public Event next() {
+		return events.hasNext() ? events.next() : null;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * @return a timed event, the title is needed to order events that start
+	 *         and end together
+	 */
+	static Event event(final String title, final long startMillis,
+			final long endMillis) {
+		final Event event = new Event();
+		event.title = title;
+		event.startMillis = startMillis;
+		event.endMillis = endMillis;
+		return event;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public final class MergedSourceTest extends TestCase {
+	public void testNoSources() {
+		final EventSource merged = MergedSource
+				.merge(new ArrayList<EventSource>());
+		assertNull(merged.next());
+		assertNull(merged.next());
+		merged.close();
+	}
+
+	public void testSingleSourceIsKept() {
+		final List<EventSource> sources = new ArrayList<EventSource>();
+		final ListSource only = new ListSource();
+		sources.add(only);
+		assertSame(only, MergedSource.merge(sources));
+	}
+
+	public void testMergesInDisplayOrder() {
+		final Event a = ListSource.event("a", 1000, 2000);
+		final Event b = ListSource.event("b", 1500, 2500);
+		final Event c = ListSource.event("c", 3000, 4000);
+		final List<EventSource> sources = new ArrayList<EventSource>();
+		final ListSource first = new ListSource(a, c);
+		final ListSource second = new ListSource(b);
+		sources.add(first);
+		sources.add(second);
+
+		final EventSource merged = MergedSource.merge(sources);
+		assertSame(a, merged.next());
+		assertSame(b, merged.next());
+		assertTrue("exhausted sources are closed", second.closed);
+		assertSame(c, merged.next());
+		assertNull(merged.next());
+		assertTrue(first.closed);
+	}
+
+	public void testCloseBeforeReading() {
+		final List<EventSource> sources = new ArrayList<EventSource>();
+		final ListSource first = new ListSource(ListSource.event("a", 0, 1));
+		final ListSource second = new ListSource(ListSource.event("b", 0, 1));
+		sources.add(first);
+		sources.add(second);
+		MergedSource.merge(sources).close();
+		assertTrue(first.closed);
+		assertTrue(second.closed);
+	}
+}
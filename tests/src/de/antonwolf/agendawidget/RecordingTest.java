@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public final class RecordingTest extends TestCase {
+	private static final long HOUR = 60 * 60 * 1000;
+
+	/**
+	 * A refresh on 2024-03-04 in UTC+1, read at 8:00 local time
+	 */
+	private static final int DAY = 2460374;
+	private static final long TODAY_START = 1709506800000L;
+	private static final String RECORDING = "1709535600000\tupdate\t7\n"
+			+ "read\t1709535600000\t7\t2460374\t1709506800000\t3\tfalse\ttrue\n"
+			+ "event\ttrue\t1709506800000\t1709593200000\t2460374\t2460375\t-16776961\tfalse\tfalse\tHoliday\t\n"
+			+ "event\tfalse\t1709539200000\t1709542800000\t2460374\t2460374\t-65536\ttrue\tfalse\tStand-up\\twith team\tRoom \\\\4\n"
+			+ "event\tfalse\t1709550000000\t1709553600000\t2460374\t2460374\t-65536\tfalse\tfalse\tReview\t\n"
+			+ "event\tfalse\t1709629200000\t1709632800000\t2460375\t2460375\t-65536\tfalse\tfalse\tTomorrow\t\n"
+			+ "1709539300000\tupdate\t7\n" + "event\tcut off";
+
+	private static List<Recording.Read> parse(final String recording)
+			throws IOException {
+		return Recording.parse(new BufferedReader(new StringReader(recording))).reads;
+	}
+
+	public void testParse() throws IOException {
+		final List<Recording.Read> reads = parse(RECORDING);
+		assertEquals(1, reads.size());
+		final Recording.Read read = reads.get(0);
+		assertEquals(7, read.widgetId);
+		assertEquals(3, read.maxLines);
+		assertFalse(read.countdown);
+		assertTrue(read.exhausted);
+		assertEquals(4, read.events.size());
+
+		final Event standUp = read.events.get(1);
+		assertEquals("Stand-up\twith team", standUp.title);
+		assertEquals("Room \\4", standUp.location);
+		assertTrue(standUp.hasAlarm);
+		assertNull(read.events.get(0).location);
+	}
+
+	public void testRefreshes() throws IOException {
+		final List<Recording.Refresh> refreshes = Recording
+				.parse(new BufferedReader(new StringReader(RECORDING))).refreshes;
+		assertEquals(2, refreshes.size());
+		assertEquals(1709539300000L, refreshes.get(1).sent);
+		assertEquals("update", refreshes.get(1).action);
+		assertEquals(7, refreshes.get(1).widgetId);
+		assertEquals(RECORDING.substring(0, RECORDING.indexOf('\n') + 1),
+				Recording.format(1709535600000L, "update", 7));
+	}
+
+	public void testTimeOfRead() throws IOException {
+		final TimeContext time = parse(RECORDING).get(0).getTime();
+		assertEquals(DAY, time.julianDay);
+		assertEquals(TODAY_START, time.todayStart);
+		assertEquals(TODAY_START + 24 * HOUR, time.tomorrowStart);
+	}
+
+	public void testReplay() throws IOException {
+		final Recording.Read read = parse(RECORDING).get(0);
+		final EventModel model = read.replay();
+		assertEquals(4, model.events.size());
+		assertNotSame(read.events.get(0), model.events.get(0));
+
+		final WidgetLines lines = model.fill(model.time, read.readAt,
+				read.maxLines);
+		assertEquals(3, lines.agenda.size());
+		assertEquals("Holiday", lines.agenda.get(0).title);
+		assertEquals("Review", lines.agenda.get(2).title);
+		assertTrue(lines.hasNextPage);
+		assertEquals(TODAY_START + 10 * HOUR, lines.getNextUpdate(false));
+
+		// after the stand-up the next day shows up
+		final WidgetLines later = model.fill(model.time, TODAY_START + 10
+				* HOUR + 1000, read.maxLines);
+		assertEquals("Tomorrow", later.agenda.get(2).title);
+	}
+
+	public void testFormatRoundTrip() throws IOException {
+		final Recording.Read read = parse(RECORDING).get(0);
+		final EventModel model = read.replay();
+		final String formatted = Recording.format(read.widgetId, model,
+				read.maxLines, read.countdown);
+		final List<Recording.Read> reads = parse(formatted);
+		assertEquals(1, reads.size());
+		final Recording.Read again = reads.get(0);
+		assertEquals(read.readAt, again.readAt);
+		assertEquals(read.todayStart, again.todayStart);
+		assertEquals(read.events.size(), again.events.size());
+		for (int i = 0; i < read.events.size(); i++) {
+			final Event expected = read.events.get(i);
+			final Event actual = again.events.get(i);
+			assertEquals(expected.title, actual.title);
+			assertEquals(expected.location, actual.location);
+			assertEquals(expected.startMillis, actual.startMillis);
+			assertEquals(expected.endMillis, actual.endMillis);
+			assertEquals(expected.allDay, actual.allDay);
+			assertEquals(expected.color, actual.color);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+public final class ReplayTest extends TestCase {
+	/**
+	 * What widget 7 read on 2024-03-04 in UTC+1, showing three lines
+	 */
+	private static final String EVENTS = "event\ttrue\t1709506800000\t1709593200000\t2460374\t2460375\t-16776961\tfalse\tfalse\tHoliday\t\n"
+			+ "event\tfalse\t1709539200000\t1709542800000\t2460374\t2460374\t-65536\tfalse\tfalse\tStand-up\t\n"
+			+ "event\tfalse\t1709550000000\t1709553600000\t2460374\t2460374\t-65536\tfalse\tfalse\tReview\t\n"
+			+ "event\tfalse\t1709629200000\t1709632800000\t2460375\t2460375\t-65536\tfalse\tfalse\tTomorrow\t\n";
+
+	private static String read(final long readAt) {
+		return "read\t" + readAt + "\t7\t2460374\t1709506800000\t3\tfalse\ttrue\n"
+				+ EVENTS;
+	}
+
+	private static Replay.Counts replay(final String recording)
+			throws IOException {
+		return Replay.run(Recording.parse(new BufferedReader(new StringReader(
+				recording))));
+	}
+
+	/**
+	 * A refresh at 8:00, its update alarm after the stand-up, a time zone
+	 * change at 15:00 and the day alarms
+	 */
+	public void testDay() throws IOException {
+		final Replay.Counts counts = replay("1709535600000\tupdate\t7\n"
+				+ read(1709535600000L) + "1709542801000\tupdate\t7\n"
+				+ read(1709542801000L) + "1709560800000\trelabel\t7\n"
+				+ "1709592900000\tprepare\t7\n"
+				+ "1709593201000\trollover\t7\n");
+		assertEquals(5, counts.refreshes);
+		assertEquals(2, counts.queries);
+		// both reads, the relabel and the next day, which is only pushed
+		assertEquals(4, counts.renders);
+		// update and prepare after each read, prepare after the relabel,
+		// rollover once prepared, update and rollover after the push
+		assertEquals(8, counts.alarms);
+	}
+
+	public void testRolloverWithoutPrepareLaysOut() throws IOException {
+		final Replay.Counts counts = replay("1709535600000\tupdate\t7\n"
+				+ read(1709535600000L) + "1709593201000\trollover\t7\n");
+		assertEquals(1, counts.queries);
+		assertEquals(2, counts.renders);
+	}
+
+	public void testRefreshesWithoutReadCostNothing() throws IOException {
+		final Replay.Counts counts = replay("1709535600000\tchanged\t7\n"
+				+ "1709535600000\tprepare\t7\n");
+		assertEquals(2, counts.refreshes);
+		assertEquals(0, counts.queries);
+		assertEquals(0, counts.renders);
+		assertEquals(0, counts.alarms);
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2011 by Anton Wolf
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *  
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.antonwolf.agendawidget;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public final class WakeupBudgetTest extends TestCase {
+	private static final long MINUTE = 60 * 1000;
+	private static final long HOUR = 60 * MINUTE;
+
+	private final DayTable days = DayTable.withOffset(HOUR,
+			DayTable.getJulianDay(2024, 3, 4));
+
+	/**
+	 * @return a model read at seven in the morning of the first day, the
+	 *         events of each day starting at the given hour
+	 */
+	private EventModel week(final int perDay, final long startHour,
+			final long length, final long gap) {
+		final TimeContext time = TimeContext.of(
+				DayTable.getJulianDay(2024, 3, 4), days);
+		final EventModel model = new EventModel(null, time, time.todayStart
+				+ 7 * HOUR);
+		TimeContext day = time;
+		for (int i = 0; i < WakeupBudget.DAYS + 1; i++) {
+			final Event allDay = ListSource.event("all day", day.todayStart,
+					day.tomorrowStart);
+			allDay.allDay = true;
+			model.events.add(allDay);
+			long start = day.todayStart + startHour * HOUR;
+			for (int j = 0; j < perDay; j++) {
+				model.events.add(ListSource.event("meeting " + j, start, start
+						+ length));
+				start += length + gap;
+			}
+			day = day.nextDay();
+		}
+		model.exhausted = true;
+		return model;
+	}
+
+	private static void assertWithinBudget(final List<WakeupBudget.Day> days) {
+		assertEquals(WakeupBudget.DAYS, days.size());
+		for (WakeupBudget.Day day : days)
+			assertTrue(day.wakeups + " wakeups",
+					day.wakeups <= WakeupBudget.DAILY_BUDGET);
+	}
+
+	public void testBusyDayWithinBudget() {
+		assertWithinBudget(WakeupBudget.simulate(week(8, 9, 30 * MINUTE,
+				30 * MINUTE), 5, false));
+	}
+
+	public void testCountdownWithinBudget() {
+		assertWithinBudget(WakeupBudget.simulate(week(6, 9, 30 * MINUTE,
+				30 * MINUTE), 5, true));
+	}
+
+	public void testEmptyWeekOnlyRollsOver() {
+		final List<WakeupBudget.Day> days = WakeupBudget.simulate(week(0, 0,
+				0, 0), 5, true);
+		assertWithinBudget(days);
+		// the first day is prepared ahead of midnight
+		assertEquals(1, days.get(0).wakeups);
+		assertEquals(0, days.get(0).queries);
+		// later days roll over, then refresh before the next midnight
+		for (WakeupBudget.Day day : days.subList(1, days.size())) {
+			assertEquals(2, day.wakeups);
+			assertEquals(1, day.queries);
+			assertEquals(2, day.renders);
+		}
+	}
+
+	public void testUpdatesAfterEachEvent() {
+		final List<WakeupBudget.Day> days = WakeupBudget.simulate(week(3, 9,
+				30 * MINUTE, 30 * MINUTE), 5, false);
+		assertWithinBudget(days);
+		assertEquals(4, days.get(0).wakeups);
+		assertEquals(3, days.get(0).queries);
+		for (WakeupBudget.Day day : days.subList(1, days.size()))
+			assertEquals(5, day.wakeups);
+	}
+
+	public void testCountdownWakesAtStarts() {
+		final List<WakeupBudget.Day> days = WakeupBudget.simulate(week(3, 9,
+				30 * MINUTE, 30 * MINUTE), 5, true);
+		assertEquals(7, days.get(0).wakeups);
+		for (WakeupBudget.Day day : days.subList(1, days.size()))
+			assertEquals(8, day.wakeups);
+	}
+
+	public void testBackToBackEventsOverBudget() {
+		final List<WakeupBudget.Day> days = WakeupBudget.simulate(week(40, 8,
+				15 * MINUTE, 0), 5, false);
+		assertTrue(days.get(0).wakeups > WakeupBudget.DAILY_BUDGET);
+	}
+
+	public void testStopsWhenEventsRunOut() {
+		final EventModel model = week(8, 9, 30 * MINUTE, 30 * MINUTE);
+		model.exhausted = false;
+		final int last = model.events.size() - 1;
+		for (int i = last; i > last - 20; i--)
+			model.events.remove(i);
+		assertTrue(WakeupBudget.simulate(model, 5, false).size() < WakeupBudget.DAYS);
+	}
+}